@@ -25,12 +25,28 @@ THE SOFTWARE.
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,59 +56,190 @@ public class M4TChatHub {
     // CONSTANTS & FIELDS
     ///////////////////////
 
-    public static final int BUFFER_SIZE = 800;
+    public static final int BUFFER_SIZE = 800; // per-session payload limit until the client advertises its own
+    public static final int MAX_BUFFER_SIZE = 1400; // what the hub advertises and can receive
+    public static final int MIN_BUFFER_SIZE = 64;
+    public static final int HEADER_SIZE = 4; // message id + session discriminator
+    public static final long MULTICAST_REFRESH_MILLIS = 30_000;
+    public static final long MULTICAST_CONFIRM_TIMEOUT_MILLIS = 75_000;
+    public static final long INTRODUCTION_TIMEOUT_MILLIS = 60_000;
+    public static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+    public static final long MAX_CHAT_QUEUE_DELAY_NANOS = 1_000_000_000L; // chat older than this is shed, not relayed late
+    public static final long LOAD_REPORT_MILLIS = 10_000;
+    public static final int WORKER_BATCH = 16; // ingress slots a worker claims at once
+    public static final int RETRANSMIT_RING_SIZE = 1024; // room broadcasts kept for NACK repair
+    public static final int MAX_NACK_RANGE = 64;
+    public static final int MAX_FRAGMENTS = 128; // a longer message is cut short; the client's FragmentAssembler agrees
+    public static final int FRAGMENT_HEADER_ROOM = 32; // "|^~FRAG <key> <index> <count> "
+    public static final int MAX_USERNAME_BYTES = 32; // "[<username>]: " must fit RELAY_HEADROOM with the sequence prefix
+    public static final int RELAY_HEADROOM = 96; // "|^~SEQ <seq> " and "[<username>]: "; the client's FragmentAssembler.HUB_HEADROOM agrees
+    public static final long UNREACHABLE_MILLIS = 15_000; // five missed keep-alives
+    public static final long MAX_KEEPALIVE_PROBE_MILLIS = 60_000; // longest silence a client may ask to have confirmed
+    public static final int MAILBOX_MEMORY_MESSAGES = 64; // per identity; the rest spills to disk
+    public static final long MAILBOX_SPILL_BYTES = 1 << 20; // per identity; beyond this, messages are dropped
+    public static final int MAX_MAILBOXES = 10_000;
+    public static final long MAILBOX_RETENTION_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final int MAILBOX_DRAIN_BATCH = 16;
+    public static final long MAILBOX_DRAIN_INTERVAL_MILLIS = 50;
+    public static final int HASH_RING_POINTS = 160; // per back-end hub; more points spread clients more evenly
+    public static final long IP_CACHE_TTL_MILLIS = 60 * 60 * 1000L; // public addresses rarely change within an hour
+    public static final int SHM_SPIN_LIMIT = 20_000; // idle polls before the shared-memory poller starts parking
+    public static final boolean SHM_YIELD = Runtime.getRuntime().availableProcessors() == 1; // spinning one core starves the producer
+    public static final long SHM_PARK_NANOS = 50_000; // first park once idle; doubles while it stays idle
+    public static final long SHM_PARK_MAX_NANOS = 4_000_000; // so an idle hub wakes ~250 times a second, not 20k
+    public static final long SHM_SWEEP_MILLIS = 1_000; // how often links of reaped sessions are dropped
+    public static final int SHM_DRAIN_BATCH = 64; // per link per pass, so one busy client cannot starve the rest
+    public static final long FILTER_RELOAD_MILLIS = 2_000; // how often the pattern file is checked for changes
+    public static final long SPAM_WINDOW_MILLIS = 30_000;
+    public static final int SPAM_CACHE_SIZE = 4096; // power of two; remembered content hashes
 
     static InetSocketAddress ourSocketAddr = null;
+    static int requestedPort = -1; // from --port; -1 asks on the console
     static final Scanner scn = new Scanner(System.in);
-    static final ExecutorService jobs = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    static int ingressCapacity = 4096; // chat lane; the control lane gets a quarter of it
+    static IngressQueue ingress;
+    static WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    static final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor();
     static final SessionManager sessions = new SessionManager(300_000); // 5 min timeout
+    static final Map<String, Introduction> introductions = new ConcurrentHashMap<>(); // keyed by nonce
+    static final RetransmitRing roomHistory = new RetransmitRing(RETRANSMIT_RING_SIZE);
+    static Path mailboxDir = Paths.get("m4t-mailboxes");
+    static final MailboxStore mailboxes = new MailboxStore();
+    static DatagramChannel hubChannel = null; // for timer-driven sends
+    static final String hubIdentity = UUID.randomUUID().toString().replace("-", "");
+    static final byte[] KEEP_ALIVE = "|^~KA".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] FORWARD_PREFIX = "|^~FWD ".getBytes(StandardCharsets.US_ASCII);
+    // per worker; a broadcast frame is copied in once and every recipient's send reads it from there
+    static final ThreadLocal<ByteBuffer> FANOUT_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_BUFFER_SIZE));
     static boolean active = true;
 
+    // multicast fan-out; null when the hub only unicasts
+    static InetSocketAddress multicastGroup = null;
+    static int multicastTtl = 1;
+    static DatagramChannel multicastChannel = null;
+    static volatile int multicastPayloadLimit = BUFFER_SIZE; // smallest limit among confirmed members
+
+    // hub pool; a front door only redirects, back ends forward room traffic to their peers
+    static HashRing frontDoor = null;
+    static Set<InetSocketAddress> peerHubs = Set.of();
+
+    // same-host clients attached through shared memory, keyed by their UDP address
+    static final Map<SocketAddress, ShmLink> shmLinks = new ConcurrentHashMap<>();
+    static final Map<SocketAddress, Fec> fecLinks = new ConcurrentHashMap<>(); // sessions that asked for parity
+    static volatile ShmLink[] shmPollList = new ShmLink[0]; // copy-on-write snapshot for the poller
+    static Thread shmPoller = null;
+
+    // chat filter pipeline; stages run in order over every relayed message, before fan-out
+    static volatile List<ChatFilter> chatFilters = List.of();
+    static Path filterFile = null;
+    static int spamLimit = 0; // identical messages per SPAM_WINDOW_MILLIS before the rest are dropped; 0 disables
+
+    // startup address discovery
+    static List<String> ipLookupEndpoints = List.of("https://api.ipify.org", "https://api6.ipify.org");
+    static int ipLookupTimeoutMillis = 2000;
+    static Path ipCacheFile = Paths.get(System.getProperty("user.home"), ".m4t-ipcache");
+
     /////////////////////
     // UTILITY METHODS
     /////////////////////
 
-    public static void printYourAddresses() {
-        try {
-            // Local
-            System.out.println("Your Local IP addresses:");
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces.hasMoreElements()) {
-                NetworkInterface ni = interfaces.nextElement();
-                if (!ni.isUp() || ni.isLoopback()) continue;
+    /// starts looking up this machine's addresses and prints them once every lookup has answered or timed out.
+    /// returns immediately; the hub does not wait for discovery before serving.
+    public static CompletableFuture<Void> printYourAddresses() {
+        return new AddressDiscovery(ipLookupEndpoints, ipLookupTimeoutMillis, ipCacheFile).report()
+                .thenAccept(report -> System.out.print("\n" + report + "\n"));
+    }
 
-                Enumeration<InetAddress> addresses = ni.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    System.out.println(" - " + addr.getHostAddress()
-                            + " (" + (addr instanceof Inet4Address ? "IPv4" : "IPv6") + ")");
+    /// parses --key=value style launch arguments.
+    /// recognized: --port=<port>, --multicast=<group>:<port>, --multicast-ttl=<hops>, --queue-capacity=<packets>,
+    /// --mailbox-dir=<path>, --front-door=<host>:<port>,..., --peers=<host>:<port>,...,
+    /// --ip-lookup=<url>,... (empty for none), --ip-lookup-timeout=<millis>, --ip-cache=<path>,
+    /// --filter=<pattern file>, --spam-limit=<repeats>, --wait-strategy=blocking|yielding|busy-spin
+    public static void parseArgs(String[] args) {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            String key = eq == -1 ? arg : arg.substring(0, eq);
+            String value = eq == -1 ? "" : arg.substring(eq + 1);
+            try {
+                switch (key) {
+                    case "--port":
+                        requestedPort = Integer.parseInt(value);
+                        break;
+                    case "--front-door":
+                        frontDoor = new HashRing(parseEndpoints(value));
+                        break;
+                    case "--peers":
+                        peerHubs = new HashSet<>(parseEndpoints(value));
+                        break;
+                    case "--multicast":
+                        int colon = value.lastIndexOf(':');
+                        InetAddress group = InetAddress.getByName(value.substring(0, colon));
+                        if (!group.isMulticastAddress()) {
+                            System.out.println(group.getHostAddress() + " is not a multicast address; multicast fan-out disabled.");
+                            break;
+                        }
+                        multicastGroup = new InetSocketAddress(group, Integer.parseInt(value.substring(colon + 1)));
+                        break;
+                    case "--multicast-ttl":
+                        multicastTtl = Integer.parseInt(value);
+                        break;
+                    case "--mailbox-dir":
+                        mailboxDir = Paths.get(value);
+                        break;
+                    case "--ip-lookup":
+                        ipLookupEndpoints = new ArrayList<>();
+                        for (String url : value.split(",")) {
+                            if (!url.isBlank()) ipLookupEndpoints.add(url.trim());
+                        }
+                        break;
+                    case "--ip-lookup-timeout":
+                        ipLookupTimeoutMillis = Math.max(1, Integer.parseInt(value));
+                        break;
+                    case "--ip-cache":
+                        ipCacheFile = Paths.get(value);
+                        break;
+                    case "--filter":
+                        filterFile = Paths.get(value);
+                        break;
+                    case "--spam-limit":
+                        spamLimit = Math.max(0, Integer.parseInt(value));
+                        break;
+                    case "--wait-strategy":
+                        waitStrategy = WaitStrategy.valueOf(value.toUpperCase(Locale.ROOT).replace('-', '_'));
+                        break;
+                    case "--queue-capacity":
+                        ingressCapacity = Math.max(16, Integer.parseInt(value));
+                        break;
+                    default:
+                        System.out.println("Ignoring unknown argument " + arg);
+                        break;
                 }
+            } catch (UnknownHostException | IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                System.out.println("Ignoring malformed argument " + arg);
             }
+        }
+    }
 
-            // Public IPv4
-            System.out.println("\nYour Public IP addresses as seen by ipify.org:");
-            try (BufferedReader in = new BufferedReader(
-                    new InputStreamReader(new URL("https://api.ipify.org").openStream()))) {
-                System.out.println(" - Public IPv4: " + in.readLine());
-            } catch (Exception e) {
-                System.out.println(" - Public IPv4: Could not determine (" + e.getMessage() + ")");
-            }
-
-            // Public IPv6
-            try (BufferedReader in6 = new BufferedReader(
-                    new InputStreamReader(new URL("https://api6.ipify.org").openStream()))) {
-                System.out.println(" - Public IPv6: " + in6.readLine());
-            } catch (Exception e) {
-                System.out.println(" - Public IPv6: Could not determine (" + e.getMessage() + ")");
-            }
-        } catch (SocketException e) {
-            System.getLogger("M4TChatProgram")
-                  .log(System.Logger.Level.ERROR, "Exception during address checks", e);
+    /// parses a comma-separated list of host:port endpoints.
+    static List<InetSocketAddress> parseEndpoints(String value) throws UnknownHostException {
+        List<InetSocketAddress> endpoints = new ArrayList<>();
+        for (String endpoint : value.split(",")) {
+            if (endpoint.isBlank()) continue;
+            int colon = endpoint.lastIndexOf(':');
+            endpoints.add(new InetSocketAddress(InetAddress.getByName(endpoint.substring(0, colon).trim()),
+                    Integer.parseInt(endpoint.substring(colon + 1).trim())));
         }
+        if (endpoints.isEmpty()) throw new NumberFormatException("no endpoints in " + value);
+        return endpoints;
     }
 
     public static void resolveTransmissionConfig() {
-        System.out.println("Please enter the hub's operating port (0–65535):");
+        if (requestedPort >= 0 && requestedPort <= 65535) {
+            tryPort(requestedPort);
+        }
+        if (ourSocketAddr == null) {
+            System.out.println("Please enter the hub's operating port (0–65535):");
+        }
 
         while (ourSocketAddr == null) {
             try {
@@ -101,122 +248,900 @@ public class M4TChatHub {
                     System.out.println("Port must be between 0 and 65535.");
                     continue;
                 }
-
-                try (DatagramChannel testCh = DatagramChannel.open()) {
-                    testCh.bind(new InetSocketAddress(port));
-                    ourSocketAddr = (InetSocketAddress) testCh.getLocalAddress();
-                    System.out.println("Using port " + ourSocketAddr.getPort());
-                } catch (IOException e) {
-                    System.out.println("Port " + port + " unavailable. Try another.");
-                }
-
+                tryPort(port);
             } catch (NumberFormatException e) {
                 System.out.println("Invalid input. Please enter a number.");
             }
         }
         System.out.println();
     }
+
+    private static void tryPort(int port) {
+        try (DatagramChannel testCh = DatagramChannel.open()) {
+            testCh.bind(new InetSocketAddress(port));
+            ourSocketAddr = (InetSocketAddress) testCh.getLocalAddress();
+            System.out.println("Using port " + ourSocketAddr.getPort());
+        } catch (IOException e) {
+            System.out.println("Port " + port + " unavailable. Try another.");
+        }
+    }
     
     /// sends a message.
-    /// returns a later substring of characters that couldn't fit in the payload.
-    static String sendMsg(DatagramChannel chan, String msg, SocketAddress target){
+    static void sendMsg(DatagramChannel chan, String msg, SocketAddress target){
+        sendMsg(chan, msg, target, (short) 0, BUFFER_SIZE);
+    }
+
+    /// sends a message to a session, within the payload size that session negotiated.
+    static void sendMsg(DatagramChannel chan, String msg, Session target){
+        sendMsg(chan, msg, target.socketAddr, (short) 0, target.maxPayload);
+    }
+
+    /// sends a message stamped with the given session discriminator, using at most payloadLimit bytes per datagram.
+    /// a message that does not fit is sent as |^~FRAG fragments, which the client joins back together.
+    static void sendMsg(DatagramChannel chan, String msg, SocketAddress target, short discriminator, int payloadLimit){
+        byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
+        if (msgBytes.length > payloadLimit - HEADER_SIZE) {
+            for (byte[] fragment : fragment(msgBytes, payloadLimit)) sendContent(chan, discriminator, fragment, target);
+            return;
+        }
+        sendContent(chan, discriminator, msgBytes, target);
+    }
+
+    /// sends content bytes behind a fresh header.
+    static void sendContent(DatagramChannel chan, short discriminator, byte[] content, SocketAddress target) {
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + content.length);
+            buffer.putShort((short)ThreadLocalRandom.current().nextInt(0,65536)).putShort(discriminator).put(content).flip();
+            transmit(chan, buffer, target);
+        } catch (IOException ex) {
+            Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /// splits a message into |^~FRAG <key> <index> <count> <text> contents that each fit payloadLimit,
+    /// cut on UTF-8 character boundaries so every fragment is valid text. at most MAX_FRAGMENTS; the rest is dropped.
+    static List<byte[]> fragment(byte[] msg, int payloadLimit) {
+        int chunk = Math.max(16, payloadLimit - HEADER_SIZE - FRAGMENT_HEADER_ROOM);
+        List<int[]> cuts = new ArrayList<>();
+        for (int from = 0; from < msg.length && cuts.size() < MAX_FRAGMENTS; ) {
+            int to = Math.min(from + chunk, msg.length);
+            while (to < msg.length && to > from + 1 && (msg[to] & 0xC0) == 0x80) to--; // never cut a character in half
+            cuts.add(new int[] {from, to});
+            from = to;
+        }
+        String key = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+        List<byte[]> fragments = new ArrayList<>(cuts.size());
+        for (int i = 0; i < cuts.size(); i++) {
+            byte[] header = ("|^~FRAG " + key + " " + i + " " + cuts.size() + " ").getBytes(StandardCharsets.US_ASCII);
+            int from = cuts.get(i)[0], to = cuts.get(i)[1];
+            byte[] fragment = Arrays.copyOf(header, header.length + to - from);
+            System.arraycopy(msg, from, fragment, header.length, to - from);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /// what an ACK echoes of a message: all of it, except that a fragment is acknowledged by its header alone,
+    /// since echoing it whole would not fit one datagram.
+    static String acknowledgedPart(String content) {
+        if (!content.startsWith("|^~FRAG ")) return content;
+        String[] parts = content.split(" ", 5);
+        return String.join(" ", Arrays.asList(parts).subList(0, Math.min(4, parts.length)));
+    }
+
+    /// an ACK that fits one datagram of payloadLimit bytes: prefix, then as much of the echo as fits, cut the way
+    /// the client cuts its own. a fragmented ACK would reach the client as chat, and the real ACK would be lost.
+    static String fitAck(String prefix, String acknowledged, int payloadLimit) {
+        int maxChars = (payloadLimit - HEADER_SIZE - prefix.length()) / 3; // UTF-8 needs at most 3 bytes per char
+        if (acknowledged.length() > maxChars) {
+            int cut = Math.max(0, maxChars);
+            if (cut > 0 && Character.isHighSurrogate(acknowledged.charAt(cut - 1))) cut--;
+            acknowledged = acknowledged.substring(0, cut);
+        }
+        return prefix + acknowledged;
+    }
+
+    /// a relayed fragment's content: its header, then, on the first fragment only, "[<username>]: ",
+    /// then its text; the joined message then reads like any other room message. null if malformed.
+    static byte[] attributeFragment(byte[] username, byte[] content, int offset, int length) {
+        int end = offset + length;
+        int headerEnd = fragmentHeaderEnd(content, offset, length);
+        if (headerEnd < 0) return null;
+        int indexStart = offset;
+        for (int spaces = 0; spaces < 2; spaces++) { // past "|^~FRAG" and the key
+            while (content[indexStart] != ' ') indexStart++;
+            indexStart++;
+        }
+        boolean first = content[indexStart] == '0' && content[indexStart + 1] == ' ';
+        int nameLength = first ? username.length + 4 : 0;
+        byte[] out = new byte[length + nameLength];
+        int head = headerEnd - offset;
+        System.arraycopy(content, offset, out, 0, head);
+        if (first) {
+            out[head] = '[';
+            System.arraycopy(username, 0, out, head + 1, username.length);
+            out[head + 1 + username.length] = ']';
+            out[head + 2 + username.length] = ':';
+            out[head + 3 + username.length] = ' ';
+        }
+        System.arraycopy(content, headerEnd, out, head + nameLength, end - headerEnd);
+        return out;
+    }
+
+    /// where a fragment's text starts: just past its "|^~FRAG <key> <index> <count> " header. -1 if malformed.
+    static int fragmentHeaderEnd(byte[] content, int offset, int length) {
+        int end = offset + length;
+        int headerEnd = offset;
+        for (int spaces = 0; spaces < 4; spaces++) {
+            while (headerEnd < end && content[headerEnd] != ' ') headerEnd++;
+            if (headerEnd == end) return -1;
+            headerEnd++;
+        }
+        return headerEnd;
+    }
+
+    /// puts a frame on the wire, or into the session's shared-memory ring if it attached one.
+    /// a full ring falls back to UDP rather than blocking the sender.
+    /// frames that go on the wire to a session that negotiated FEC are folded into its parity.
+    static void transmit(DatagramChannel chan, ByteBuffer frame, SocketAddress target) throws IOException {
+        if (!shmLinks.isEmpty()) {
+            ShmLink link = shmLinks.get(target);
+            if (link != null && link.outbound.offer(frame)) return;
+        }
+        Fec fec = fecLinks.isEmpty() ? null : fecLinks.get(target);
+        if (fec == null) {
+            chan.send(frame, target);
+            return;
+        }
+        int position = frame.position();
+        chan.send(frame, target);
+        fec.cover(chan, frame, position);
+    }
+
+    /// sends a message once to the multicast group, stamped with the given session discriminator.
+    /// group members drop frames carrying their own discriminator, so senders do not hear themselves.
+    static void sendToGroup(String msg, short discriminator) {
+        if (multicastChannel == null) return;
         try {
             byte[] msgBytes = msg.getBytes(StandardCharsets.UTF_8);
-            int maxLen = BUFFER_SIZE - 2; //accounting for the two byte message id (short)
-            
-            int len = Math.min(msgBytes.length, maxLen);
-            byte[] sendablePart = Arrays.copyOfRange(msgBytes, 0, len);
-            
+            int len = Math.min(msgBytes.length, multicastPayloadLimit - 4);
             short randomId = (short)ThreadLocalRandom.current().nextInt(0,65536);
-            Payload outbound = new Payload (randomId, new String(sendablePart,StandardCharsets.UTF_8));
-            
-            ByteBuffer buffer = ByteBuffer.wrap(outbound.toBytes());
-            chan.send(buffer, target);
-            
-            // return leftovers if any
-            if (len < msgBytes.length){
-                return new String(Arrays.copyOfRange(msgBytes, len, msgBytes.length), StandardCharsets.UTF_8);
+            Payload outbound = new Payload(randomId, discriminator, new String(msgBytes, 0, len, StandardCharsets.UTF_8));
+            multicastChannel.send(ByteBuffer.wrap(outbound.toBytes()), multicastGroup);
+        } catch (IOException ex) {
+            Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /// sends a prebuilt frame; the caller makes sure it fits the recipient.
+    static void sendFrame(DatagramChannel chan, byte[] frame, SocketAddress target) {
+        try {
+            transmit(chan, ByteBuffer.wrap(frame), target);
+        } catch (IOException ex) {
+            Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /// sends a fan-out buffer holding frameLength bytes; the caller makes sure it fits the recipient.
+    /// the buffer is rewound rather than wrapped again, so a send allocates nothing.
+    static void sendFanout(DatagramChannel chan, ByteBuffer out, int frameLength, SocketAddress target) {
+        try {
+            out.limit(frameLength).position(0);
+            transmit(chan, out, target);
+        } catch (IOException ex) {
+            Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /// sends a room broadcast that is too long for the recipient's payload limit as |^~FRAG fragments instead of
+    /// cutting it short. the first fragment goes inside the broadcast's |^~SEQ envelope, so the recipient still
+    /// sees the sequence number; the client unwraps it, then joins the fragments.
+    static void sendFragmentedBroadcast(DatagramChannel chan, RetransmitRing.Entry stamped, SocketAddress target, int payloadLimit) {
+        int seqPrefixLength = stamped.messageOffset - HEADER_SIZE;
+        List<byte[]> fragments = fragment(stamped.message(), payloadLimit - seqPrefixLength);
+        for (int i = 0; i < fragments.size(); i++) {
+            byte[] content = fragments.get(i);
+            if (i == 0) {
+                byte[] wrapped = Arrays.copyOfRange(stamped.frame, HEADER_SIZE, stamped.messageOffset + content.length);
+                System.arraycopy(content, 0, wrapped, seqPrefixLength, content.length);
+                content = wrapped;
+            }
+            sendContent(chan, stamped.senderDiscriminator, content, target);
+        }
+    }
+
+    /// resends the requested room broadcasts to one session.
+    /// a session's own broadcasts are replaced by empty |^~SEQ fillers; it never received them in the first place.
+    static void repairGap(DatagramChannel chan, String[] tokens, Session requester) {
+        long from, to;
+        try {
+            from = Long.parseLong(tokens[1].trim());
+            to = Long.parseLong(tokens[2].trim());
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        to = Math.min(to, from + MAX_NACK_RANGE - 1);
+        for (long seq = from; seq <= to; seq++) {
+            RetransmitRing.Entry entry = roomHistory.get(seq);
+            if (entry == null) continue; // fell out of the ring; that loss is permanent
+            if (entry.senderDiscriminator == requester.discriminator) {
+                sendMsg(chan, "|^~SEQ " + seq, requester);
+            } else {
+                if (entry.frame.length > requester.maxPayload) {
+                    sendFragmentedBroadcast(chan, entry, requester.socketAddr, requester.maxPayload);
+                } else {
+                    sendFrame(chan, entry.frame, requester.socketAddr);
+                }
+            }
+        }
+    }
+
+    /// tells a session which group room traffic is published to, if multicast fan-out is on.
+    static void announceMulticast(DatagramChannel chan, Session session) {
+        if (multicastGroup == null) return;
+        sendMsg(chan, "|^~MCAST " + multicastGroup.getAddress().getHostAddress() + " " + multicastGroup.getPort(), session);
+    }
+
+    /// asks the group to prove that the given session receives multicast traffic.
+    /// only the session holding the probed discriminator answers, with |^~MCOK over unicast.
+    static void probeMulticastMember(Session member) {
+        member.multicastProbe = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        sendToGroup("|^~MCPROBE " + member.discriminator + " " + member.multicastProbe, (short) 0);
+    }
+
+    /// drops sessions that stopped confirming group reception back to unicast, then re-probes the rest.
+    static void refreshMulticastMembers() {
+        long now = System.currentTimeMillis();
+        for (Session s : sessions) {
+            if (!s.multicastMember) continue;
+            if (now - s.multicastConfirmedTime > MULTICAST_CONFIRM_TIMEOUT_MILLIS) {
+                s.multicastMember = false;
+                System.out.println("(" + s.username() + " fell back to unicast)");
+                continue;
+            }
+            probeMulticastMember(s);
+        }
+        recomputeMulticastPayloadLimit();
+    }
+
+    /// group datagrams must fit every member, so they use the smallest negotiated limit.
+    static void recomputeMulticastPayloadLimit() {
+        int limit = MAX_BUFFER_SIZE;
+        for (Session s : sessions) {
+            if (s.multicastMember) limit = Math.min(limit, s.maxPayload);
+        }
+        multicastPayloadLimit = limit;
+    }
+
+    /// reads the optional mtu=<bytes> field that peers append to SALVE and E2SALVE.
+    /// returns 0 when absent or malformed.
+    static int parseMtuField(String[] tokens) {
+        for (String token : tokens) {
+            token = token.trim();
+            if (token.startsWith("mtu=")) {
+                try {
+                    return Integer.parseInt(token.substring(4));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /// reads the optional fec=<data>,<parity> field of SALVE and turns parity for the session on or off.
+    static void applyPeerFec(Session session, String[] tokens) {
+        Fec fec = null;
+        for (String token : tokens) {
+            token = token.trim();
+            if (!token.startsWith("fec=")) continue;
+            try {
+                int comma = token.indexOf(',');
+                int data = Integer.parseInt(token.substring(4, comma));
+                int parity = Integer.parseInt(token.substring(comma + 1));
+                if (data > 0 && parity > 0) fec = new Fec(session, data, parity);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
             }
+        }
+        session.fec = fec;
+        if (fec != null) {
+            fecLinks.put(session.socketAddr, fec);
+        } else {
+            fecLinks.remove(session.socketAddr);
+        }
+    }
+
+    /// applies a payload size the client can receive, clamped to what the hub can send.
+    static void applyPeerMtu(Session session, int advertised) {
+        if (advertised <= 0) return;
+        session.maxPayload = Math.max(MIN_BUFFER_SIZE, Math.min(advertised, MAX_BUFFER_SIZE));
+        if (session.multicastMember) recomputeMulticastPayloadLimit();
+    }
+
+    /// answers a path-MTU probe with a reply padded to the probed size, proving both directions.
+    /// a client widening its keep-alive interval asks us to stay silent for a while, then answer;
+    /// if the answer still reaches it, the NAT mappings in between survive that much silence.
+    /// its keep-alives may then come that much further apart before it counts as unreachable, but only once
+    /// the client is heard from after the answer went out; a client that never got the answer keeps the old limit.
+    static void answerKeepAliveProbe(DatagramChannel chan, String[] tokens, Session target) {
+        long silence;
+        try {
+            silence = Long.parseLong(tokens[1].trim());
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (silence <= 0 || silence > MAX_KEEPALIVE_PROBE_MILLIS || target.keepAliveProbeDue > now) return; // one at a time
+        target.keepAliveProbeDue = now + silence;
+        timers.schedule(() -> {
+            sendMsg(chan, "|^~KAPROBEOK " + silence, target);
+            target.widenedUnreachableMillis = Math.max(UNREACHABLE_MILLIS, 5 * silence);
+        }, silence, TimeUnit.MILLISECONDS);
+    }
+
+    static void answerMtuProbe(DatagramChannel chan, String[] tokens, Session target) {
+        try {
+            int size = Integer.parseInt(tokens[1].trim());
+            if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE) return;
+            StringBuilder reply = new StringBuilder(size).append("|^~PMTUOK ").append(size).append(' ');
+            while (reply.length() < size - 4) reply.append('x');
+            Payload outbound = new Payload((short)ThreadLocalRandom.current().nextInt(0,65536), (short) 0, reply.toString());
+            transmit(chan, ByteBuffer.wrap(outbound.toBytes()), target.socketAddr);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            // malformed probe; the client falls back to its default size
         } catch (IOException ex) {
             Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
         }
-        return null;
+    }
+
+    /// tells two sessions each other's observed endpoints so that they can punch through their NATs.
+    /// each side receives |^~PEER <nonce> <ip> <port> <username> describing the other.
+    static void introduce(DatagramChannel chan, Session first, Session second) {
+        String nonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        introductions.put(nonce, new Introduction(nonce, first, second));
+        sendMsg(chan, "|^~PEER " + nonce + " " + first.socketAddr.getAddress().getHostAddress() + " "
+                + first.socketAddr.getPort() + " " + first.username(), second);
+        sendMsg(chan, "|^~PEER " + nonce + " " + second.socketAddr.getAddress().getHostAddress() + " "
+                + second.socketAddr.getPort() + " " + second.username(), first);
+        System.out.println("(introduced " + first.username() + " and " + second.username() + ")");
+    }
+
+    /// the pair could not connect directly, so the hub relays their messages to each other only.
+    static void startPrivateRelay(DatagramChannel chan, Introduction intro) {
+        if (intro.first.relayPeer == intro.second) return; // both sides reported the failure
+        endPrivateRelay(chan, intro.first);
+        endPrivateRelay(chan, intro.second);
+        intro.first.relayPeer = intro.second;
+        intro.second.relayPeer = intro.first;
+        intro.first.multicastMember = false; // relayed sessions are out of the room
+        intro.second.multicastMember = false;
+        sendMsg(chan, "Could not reach " + intro.second.username() + " directly; the hub will relay your messages. Send /leave to return to the room.", intro.first);
+        sendMsg(chan, "Could not reach " + intro.first.username() + " directly; the hub will relay your messages. Send /leave to return to the room.", intro.second);
+        System.out.println("(relaying privately between " + intro.first.username() + " and " + intro.second.username() + ")");
+    }
+
+    /// returns a session and its relay partner, if any, to the room.
+    static void endPrivateRelay(DatagramChannel chan, Session session) {
+        Session partner = session.relayPeer;
+        if (partner == null) return;
+        session.relayPeer = null;
+        announceMulticast(chan, session); // relayed clients left the group
+        if (partner.relayPeer == session) {
+            partner.relayPeer = null;
+            sendMsg(chan, session.username() + " left your private conversation. You are back in the room.", partner);
+            announceMulticast(chan, partner);
+        }
+    }
+
+    static void expireIntroductions() {
+        long now = System.currentTimeMillis();
+        introductions.values().removeIf(intro -> now - intro.createdTime > INTRODUCTION_TIMEOUT_MILLIS);
+    }
+
+    /// front-door mode: points a client at the back-end hub that owns it.
+    /// clients are keyed by their SALVE identity token, so they land on the same hub from any address;
+    /// anything sent before a SALVE is keyed by the sender's address instead.
+    static void redirect(DatagramChannel chan, Payload received, InetSocketAddress client) {
+        String key = client.getAddress().getHostAddress() + ":" + client.getPort();
+        boolean salve = received.content.startsWith("|^~SALVE ");
+        if (salve) {
+            String[] tokens = received.content.split(" ");
+            if (tokens.length > 1 && !tokens[1].isBlank()) key = tokens[1].trim();
+        }
+        InetSocketAddress owner = frontDoor.route(key);
+        sendMsg(chan, "|^~REDIRECT " + owner.getAddress().getHostAddress() + " " + owner.getPort(), client);
+        if (salve) {
+            System.out.println("(redirected " + key + " to " + owner.getAddress().getHostAddress() + ":" + owner.getPort() + ")");
+        }
+    }
+
+    /// hands a room broadcast to every peer hub, which relays it to its own sessions.
+    /// peers do not forward it again, so every back end must list all the others.
+    static void forwardToPeers(DatagramChannel chan, RetransmitRing.Entry stamped) {
+        if (peerHubs.isEmpty()) return;
+        int messageLength = stamped.frame.length - stamped.messageOffset;
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + FORWARD_PREFIX.length + messageLength);
+        frame.putShort((short) ThreadLocalRandom.current().nextInt(0, 65536)).putShort((short) 0)
+                .put(FORWARD_PREFIX).put(stamped.frame, stamped.messageOffset, messageLength);
+        for (InetSocketAddress peer : peerHubs) {
+            sendFrame(chan, frame.array(), peer); // relayed chat leaves RELAY_HEADROOM, which covers |^~FWD
+        }
+    }
+
+    /// attaches a same-host client's shared-memory rings: |^~SHM <path>.
+    /// only local senders may attach, and only files that look like a client's ring file.
+    static void attachShm(DatagramChannel chan, String[] tokens, Session session) {
+        InetAddress from = session.socketAddr.getAddress();
+        boolean local;
+        try {
+            local = from.isLoopbackAddress() || NetworkInterface.getByInetAddress(from) != null;
+        } catch (SocketException e) {
+            local = false;
+        }
+        ShmLink link = null;
+        if (local && tokens.length > 1) {
+            try {
+                link = ShmLink.open(Paths.get(tokens[1].trim()), session.socketAddr);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("(refused shared memory from " + session.username() + ": " + e.getMessage() + ")");
+            }
+        }
+        if (link == null) {
+            sendMsg(chan, "|^~SHMFAIL", session);
+            return;
+        }
+        sendMsg(chan, "|^~SHMOK", session); // still over UDP; everything after this goes through the ring
+        shmLinks.put(session.socketAddr, link);
+        refreshShmPollList();
+        synchronized (M4TChatHub.class) {
+            if (shmPoller == null) {
+                shmPoller = new Thread(M4TChatHub::runShmPoller, "ShmPoller");
+                shmPoller.setDaemon(true);
+                shmPoller.start();
+            }
+        }
+        System.out.println("(" + session.username() + " attached through shared memory)");
+    }
+
+    static void detachShm(SocketAddress client) {
+        if (shmLinks.remove(client) != null) refreshShmPollList();
+    }
+
+    static synchronized void refreshShmPollList() {
+        shmPollList = shmLinks.values().toArray(new ShmLink[0]);
+    }
+
+    /// drains every attached client's inbound ring into the same ingress lanes the selector feeds.
+    /// spins while traffic flows, which keeps same-host latency in microseconds, and parks when idle,
+    /// doubling the park up to SHM_PARK_MAX_NANOS until traffic resumes.
+    private static void runShmPoller() {
+        int idlePolls = 0;
+        long parkNanos = SHM_PARK_NANOS;
+        long nextSweep = System.currentTimeMillis() + SHM_SWEEP_MILLIS;
+        while (true) {
+            boolean busy = false;
+            for (ShmLink link : shmPollList) {
+                for (int i = 0; i < SHM_DRAIN_BATCH; i++) {
+                    byte[] packet = link.inbound.poll();
+                    if (packet == null) break;
+                    busy = true;
+                    acceptShmPacket(link, packet);
+                }
+            }
+            if (busy) {
+                idlePolls = 0;
+                parkNanos = SHM_PARK_NANOS;
+            } else if (++idlePolls < SHM_SPIN_LIMIT) {
+                if (SHM_YIELD) Thread.yield(); else Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(parkNanos);
+                parkNanos = Math.min(parkNanos * 2, SHM_PARK_MAX_NANOS);
+            }
+            if (System.currentTimeMillis() >= nextSweep) {
+                nextSweep = System.currentTimeMillis() + SHM_SWEEP_MILLIS;
+                for (ShmLink link : shmPollList) {
+                    if (sessions.getByAddress(link.client) == null) detachShm(link.client); // reaped
+                }
+            }
+        }
+    }
+
+    /// the shared-memory twin of the selector's per-packet work.
+    private static void acceptShmPacket(ShmLink link, byte[] packet) {
+        if (packet.length < HEADER_SIZE) return; // a runt, as on the wire
+        ByteBuffer buf = ByteBuffer.wrap(packet);
+        if (isKeepAlive(buf)) {
+            Session known = sessions.getByAddress(link.client);
+            if (known != null && !known.mailboxed) {
+                known.heard(System.currentTimeMillis());
+                return;
+            }
+        }
+        ingress.offer(classify(buf), hubChannel, buf, link.client);
     }
 
     ///////////////////////
     // NETWORKING LOGIC
     ///////////////////////
     private static void handlePayload(DatagramChannel channel, ByteBuffer data, SocketAddress client) { //to be ran on a worker thread
-        Payload received = Payload.fromBytes(data.array(), BUFFER_SIZE);
-        Session sender = sessions.getOrCreate(client.toString(), (InetSocketAddress) client); //supposedly a safe cast
-        sessions.touch(sender.socketAddr);
-        // Semaphore handling
-        if (received.content.startsWith("|^~")) {
+        handlePayload(channel, data, client, false);
+    }
+
+    /// rebuilt is true for a frame that FEC recovered; it was stored as rebuilt already, so it skips remember(),
+    /// which would otherwise take it for its own late original and drop it.
+    private static void handlePayload(DatagramChannel channel, ByteBuffer data, SocketAddress client, boolean rebuilt) {
+        Payload received = Payload.fromBytes(data.array(), data.limit());
+        if (frontDoor != null) {
+            redirect(channel, received, (InetSocketAddress) client); // a front door keeps no sessions
+            return;
+        }
+        if (peerHubs.contains(client)) {
+            if (received.content.startsWith("|^~FWD ")) {
+                System.out.println(received.content.substring(FORWARD_PREFIX.length));
+                int start = HEADER_SIZE + FORWARD_PREFIX.length;
+                broadcastToRoom(channel, null, data.array(), start, data.limit() - start, null, (short) 0);
+            }
+            return; // peer hubs are not chatters
+        }
+        Session sender = sessions.getOrCreate((InetSocketAddress) client); //supposedly a safe cast; also refreshes the timestamp
+        if (sender.mailboxed && sender.identity != null) {
+            mailboxes.beginDrain(sender); // back after being unreachable; no-op if already draining
+        }
+        Fec fec = sender.fec;
+        if (received.content.startsWith("|^~FEC ")) { // parity; never chat content
+            byte[] recovered = fec == null ? null : fec.recover(data.array(), data.limit());
+            if (recovered != null) handlePayload(channel, ByteBuffer.wrap(recovered), client, true);
+            return;
+        }
+        if (fec != null && !rebuilt && !fec.remember(data.array(), data.limit())) {
+            return; // the original of a frame we already rebuilt
+        }
+        // Semaphore handling; fragments are chat, relayed one by one and never joined here
+        boolean fragment = received.content.startsWith("|^~FRAG ");
+        if (received.content.startsWith("|^~") && !fragment) {
             String tokens[] = received.content.split(" ");
             switch (tokens[0].trim()){ //we need the trim so that we dispose newlines
                 case "|^~SALVE": //should be the first case, else side effects
-                    sendMsg(channel,"|^~E2SALVE",sender.socketAddr);
+                    String theirToken = tokens.length > 1 ? tokens[1].trim() : "";
+                    if (!theirToken.isEmpty()) {
+                        sender.identity = theirToken;
+                        if (mailboxes.isCollecting(theirToken)) {
+                            sender.mailboxed = true; // drained below, after the handshake replies
+                        }
+                    }
+                    applyPeerMtu(sender, parseMtuField(tokens));
+                    applyPeerFec(sender, tokens);
+                    Fec agreed = sender.fec;
+                    sendMsg(channel,"|^~E2SALVE "+theirToken+" "+hubIdentity+" "+sender.discriminator+" mtu="+MAX_BUFFER_SIZE
+                            +(agreed == null ? "" : " fec="+agreed.dataPerGroup+","+agreed.parityPerGroup),sender);
+                    announceMulticast(channel, sender);
+                    if (sender.mailboxed) mailboxes.beginDrain(sender);
                     // intentional switch fallthrough; no break should be here
                 case "|^~E2SALVE":
-                    System.out.println("(SALVE from "+sender.username+")");
+                    System.out.println("(SALVE from "+sender.username()+")");
                     // hmm, but how would clients even get the chance to respond with this exact main token?
                     break;
                 case "|^~ACK":
                     //do nothing for now
                     break;
+                case "|^~MTU": // client finished probing and settled on a size
+                    try {
+                        applyPeerMtu(sender, Integer.parseInt(tokens[1].trim()));
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+                    }
+                    break;
+                case "|^~PMTU":
+                    answerMtuProbe(channel, tokens, sender);
+                    break;
+                case "|^~INTRO": { // |^~INTRO <username>
+                    Session other = tokens.length > 1 ? sessions.getByUsername(tokens[1].trim()) : null;
+                    if (other == null || other == sender) {
+                        sendMsg(channel, "No other chatter is named " + (tokens.length > 1 ? tokens[1].trim() : "") + ".", sender);
+                        break;
+                    }
+                    introduce(channel, sender, other);
+                    break;
+                }
+                case "|^~PUNCHOK": { // the pair talks directly now; nothing left for the hub to carry
+                    Introduction intro = tokens.length > 1 ? introductions.get(tokens[1].trim()) : null;
+                    if (intro != null && intro.involves(sender)) {
+                        System.out.println("(" + sender.username() + " connected directly to " + intro.partnerOf(sender).username() + ")");
+                    }
+                    break;
+                }
+                case "|^~PUNCHFAIL": {
+                    Introduction intro = tokens.length > 1 ? introductions.remove(tokens[1].trim()) : null;
+                    if (intro != null && intro.involves(sender)) {
+                        startPrivateRelay(channel, intro);
+                    }
+                    break;
+                }
+                case "|^~SHM": // |^~SHM <ring file>
+                    attachShm(channel, tokens, sender);
+                    break;
+                case "|^~SHMBYE": // the client is leaving for a direct peer or another hub
+                    detachShm(sender.socketAddr);
+                    break;
+                case "|^~KAECHO": // |^~KAECHO <timestamp>: return it at once, for the client's round-trip estimate
+                    if (tokens.length > 1 && tokens[1].trim().length() <= 20) {
+                        sendMsg(channel, "|^~KAECHOOK " + tokens[1].trim(), sender);
+                    }
+                    break;
+                case "|^~KAPROBE": // |^~KAPROBE <millis>: answer only after that much silence
+                    answerKeepAliveProbe(channel, tokens, sender);
+                    break;
+                case "|^~NACK": // |^~NACK <from> <to>, inclusive
+                    repairGap(channel, tokens, sender);
+                    break;
+                case "|^~MCJOIN": // client joined the group; make it prove that group traffic reaches it
+                    if (multicastGroup != null) probeMulticastMember(sender);
+                    break;
+                case "|^~MCOK":
+                    try {
+                        if (tokens.length > 1 && Integer.parseInt(tokens[1].trim()) == sender.multicastProbe) {
+                            sender.multicastConfirmedTime = System.currentTimeMillis();
+                            if (!sender.multicastMember) {
+                                sender.multicastMember = true;
+                                recomputeMulticastPayloadLimit();
+                                System.out.println("(" + sender.username() + " now receives room traffic via multicast)");
+                            }
+                        }
+                    } catch (NumberFormatException ignored) {
+                    }
+                    break;
             }
             return;
         }
         
-        System.out.println(sender.username + ": "+received.content);
+        // A retransmission from a client in reliable mode whose ACK got lost: acknowledge again, relay nothing
+        if (!sender.firstSighting(received.messageId, received.content.hashCode())) {
+            sendMsg(channel, fitAck("|^~ACK "+received.messageId+" "+received.sessionDiscriminator+" ",
+                    acknowledgedPart(received.content), sender.maxPayload), sender);
+            return;
+        }
+
+        System.out.println(sender.username() + ": "+received.content);
         
         // Command handling
         if (received.content.startsWith("/")){
             String tokens[] = received.content.split(" ");
             switch (tokens[0].trim()){
                 case "/nickname":
-                    if (tokens[1] == null || tokens[1].isBlank())
+                    if (tokens.length < 2 || tokens[1].isBlank())
+                        break;
+                    if (tokens[1].trim().getBytes(StandardCharsets.UTF_8).length > MAX_USERNAME_BYTES) {
+                        sendMsg(channel,"Nicknames may be at most "+MAX_USERNAME_BYTES+" bytes long.",sender);
                         break;
-                    sender.username = tokens[1].trim(); //without the trim, newlines wouldve been included...
-                    sendMsg(channel,"You will now be visible to other chatters as "+sender.username+".",sender.socketAddr);
+                    }
+                    sender.setUsername(tokens[1].trim()); //without the trim, newlines wouldve been included...
+                    sendMsg(channel,"You will now be visible to other chatters as "+sender.username()+".",sender);
+                    break;
+                case "/leave":
+                    if (sender.relayPeer != null) {
+                        endPrivateRelay(channel, sender);
+                        sendMsg(channel,"You are back in the room.",sender);
+                        return;
+                    }
                     break;
             }
             // no return intended
         }
         
+        // The hub prefixes relayed chat with "|^~SEQ <seq> " and "[<username>]: ", which must still fit a datagram
+        if (data.limit() > MAX_BUFFER_SIZE - RELAY_HEADROOM) {
+            sendMsg(channel, "Your message was not relayed: it leaves no room for the hub's prefix; send it in fragments.", sender);
+            return;
+        }
+
+        // Filter stages see the raw content bytes before any fan-out; they may mask them in place.
+        // A fragment is filtered on its own text, without its header
+        int textStart = HEADER_SIZE;
+        if (fragment) {
+            textStart = fragmentHeaderEnd(data.array(), HEADER_SIZE, data.limit() - HEADER_SIZE);
+            if (textStart < 0) return;
+        }
+        for (ChatFilter filter : chatFilters) {
+            String rejection = filter.check(sender, data.array(), textStart, data.limit() - textStart);
+            if (rejection != null) {
+                sendMsg(channel, "Your message was not relayed: " + rejection + ".", sender);
+                return;
+            }
+        }
+
         // Rebroadcast msg to all sessions except this sender
-        String message = "[" + (sender.username) + "]: " + received.content;
+        // Multicast members get a single group datagram; everyone else falls back to unicast
+        Session partner = sender.relayPeer;
+        if (partner != null && sessions.getByAddress(partner.socketAddr) != partner) {
+            sender.relayPeer = partner = null; // partner was reaped
+        }
+        byte[] attributed = null; // a fragment carries the name inside, after its header
+        if (fragment) {
+            attributed = attributeFragment(sender.usernameBytes(), data.array(), HEADER_SIZE, data.limit() - HEADER_SIZE);
+            if (attributed == null) return;
+        }
+        String acknowledged = acknowledgedPart(received.content);
+        if (partner != null) {
+            // Introduced pair that could not punch through; only they see each other's messages
+            // (decoded again, since a filter may have masked the content)
+            String message = fragment ? new String(attributed, StandardCharsets.UTF_8) : "[" + sender.username() + "]: "
+                    + new String(data.array(), HEADER_SIZE, data.limit() - HEADER_SIZE, StandardCharsets.UTF_8);
+            sendMsg(channel, message, partner.socketAddr, sender.discriminator, partner.maxPayload);
+        } else {
+            // The frame is spliced from the cached username bytes and the received content bytes
+            RetransmitRing.Entry stamped = fragment
+                    ? broadcastToRoom(channel, null, attributed, 0, attributed.length, sender, sender.discriminator)
+                    : broadcastToRoom(channel, sender.usernameBytes(),
+                            data.array(), HEADER_SIZE, data.limit() - HEADER_SIZE, sender, sender.discriminator);
+            forwardToPeers(channel, stamped);
+            // The sender's ACK carries the sequence number, so the sender sees no gap for its own message
+            String ackMsg = fitAck("|^~SEQ "+stamped.seq+" |^~ACK "+received.messageId+" "+received.sessionDiscriminator+" ",
+                    acknowledged, sender.maxPayload);
+            sendMsg(channel, ackMsg, sender);
+            return;
+        }
+        // Let sender know that their message is acknowledged
+        String ackMsg = fitAck("|^~ACK "+received.messageId+" "+received.sessionDiscriminator+" ", acknowledged, sender.maxPayload); //TODO modify acknowledged content to include username if they are in GMA Display mode
+        sendMsg(channel, ackMsg, sender);
+    }
+
+    /// sends a room message to every local session except the sender, which is null for forwarded messages.
+    /// the message is "[<username>]: " followed by the content bytes, or just the content bytes when username is null.
+    /// returns the sequenced entry the message was kept under.
+    static RetransmitRing.Entry broadcastToRoom(DatagramChannel channel, byte[] username, byte[] content, int offset, int length,
+                                                Session sender, short discriminator) {
+        // Room broadcasts are sequenced and kept so that recipients can NACK what they missed.
+        // The frame is built once; every recipient gets the same bytes and message id, read from one direct buffer.
+        RetransmitRing.Entry stamped = roomHistory.stamp(discriminator, username, content, offset, length);
+        ByteBuffer out = FANOUT_BUFFER.get();
+        out.clear();
+        out.put(stamped.frame).flip(); // relayed chat leaves RELAY_HEADROOM, so every frame fits MAX_BUFFER_SIZE
+        int frameLength = out.limit();
+        if (multicastChannel != null) {
+            if (frameLength > multicastPayloadLimit) {
+                sendFragmentedBroadcast(multicastChannel, stamped, multicastGroup, multicastPayloadLimit);
+            } else {
+                sendFanout(multicastChannel, out, frameLength, multicastGroup);
+            }
+        }
+        byte[] messageBytes = null;
+        long now = System.currentTimeMillis();
         for (Session recipient : sessions) {
-            if (recipient.socketAddr == sender.socketAddr) {
+            if (recipient == sender) {
                 continue; // do not send to sender
             }
-            
-            sendMsg(channel, message, recipient.socketAddr);
+            if (recipient.relayPeer != null) {
+                continue; // in a private relay
+            }
+            if (recipient.identity != null
+                    && (recipient.mailboxed || now - recipient.lastTransmissionTime > recipient.unreachableMillis)) {
+                if (messageBytes == null) messageBytes = stamped.message();
+                if (mailboxes.offer(recipient, stamped.seq, messageBytes)) {
+                    continue; // store-and-forward until it shows up again
+                }
+            }
+            if (recipient.multicastMember) {
+                continue; // covered by the group datagram
+            }
+
+            if (frameLength > recipient.maxPayload) {
+                sendFragmentedBroadcast(channel, stamped, recipient.socketAddr, recipient.maxPayload);
+            } else {
+                sendFanout(channel, out, frameLength, recipient.socketAddr);
+            }
         }
-        // Let sender know that their message is acknowledged
-        String ackMsg = "|^~ACK "+received.messageId+" "+received.content; //TODO modify acknowledged content to include username if they are in GMA Display mode
-        sendMsg(channel, ackMsg, sender.socketAddr);
+        if (mailboxes.hasOrphans()) {
+            // identities whose sessions were reaped still collect room traffic
+            mailboxes.offerOrphans(stamped.seq, messageBytes != null ? messageBytes : stamped.message(), sender);
+        }
+        return stamped;
     }
 
-    private static void runSelectorLoop(Selector selector) { //to be executed on main thread
-        try {
-            while (true) {
-                selector.select();
-                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+    /// raw byte check for a bare |^~KA payload; the header bytes are ignored.
+    /// runs on the selector thread, so it must not allocate.
+    static boolean isKeepAlive(ByteBuffer packet) {
+        if (packet.remaining() != HEADER_SIZE + KEEP_ALIVE.length) return false;
+        int base = packet.position() + HEADER_SIZE;
+        for (int i = 0; i < KEEP_ALIVE.length; i++) {
+            if (packet.get(base + i) != KEEP_ALIVE[i]) return false;
+        }
+        return true;
+    }
 
-                while (keys.hasNext()) {
-                    SelectionKey key = keys.next();
-                    keys.remove();
+    /// semaphores (handshakes, ACKs and other control traffic) outrank chat fan-out.
+    /// chat forwarded by a peer hub (|^~FWD) is still chat, and so are the pieces of a long message (|^~FRAG)
+    /// and parity (|^~FEC), which should queue behind the frames it covers rather than overtake them.
+    /// runs on the selector thread, so it must not allocate.
+    static Priority classify(ByteBuffer packet) {
+        int base = packet.position() + HEADER_SIZE;
+        if (packet.remaining() >= HEADER_SIZE + 3
+                && packet.get(base) == '|' && packet.get(base + 1) == '^' && packet.get(base + 2) == '~') {
+            boolean chat = packet.remaining() >= HEADER_SIZE + 6 && packet.get(base + 3) == 'F'
+                    && ((packet.get(base + 4) == 'W' && packet.get(base + 5) == 'D')
+                        || (packet.get(base + 4) == 'E' && packet.get(base + 5) == 'C')
+                        || (packet.remaining() >= HEADER_SIZE + 7 && packet.get(base + 4) == 'R'
+                            && packet.get(base + 5) == 'A' && packet.get(base + 6) == 'G'));
+            return chat ? Priority.CHAT : Priority.CONTROL;
+        }
+        return Priority.CHAT;
+    }
 
-                    if (key.isReadable()) {
+    private static void runWorkerLoop() { //to be ran on each worker thread
+        long[] first = new long[1];
+        int idleRounds = 0;
+        while (true) {
+            // control first, then chat; each claim is one CAS for up to WORKER_BATCH slots
+            IngressLane lane = ingress.control;
+            int claimed = lane.claim(first, WORKER_BATCH);
+            if (claimed == 0) {
+                lane = ingress.chat;
+                claimed = lane.claim(first, WORKER_BATCH);
+            }
+            if (claimed == 0) {
+                try {
+                    idleRounds = ingress.awaitWork(idleRounds);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            idleRounds = 0;
+            for (int i = 0; i < claimed; i++) {
+                Ingress item = lane.slot(first[0] + i);
+                try {
+                    if (lane == ingress.chat && System.nanoTime() - item.enqueuedNanos > MAX_CHAT_QUEUE_DELAY_NANOS) {
+                        ingress.recordStale();
+                    } else {
+                        handlePayload(item.channel, item.data, item.client);
+                    }
+                } catch (RuntimeException e) {
+                    Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, "Worker failed on a payload", e);
+                } finally {
+                    lane.release(first[0] + i);
+                }
+            }
+        }
+    }
+
+    private static void reportShedLoad() {
+        long[] shed = ingress.drainDropCounts();
+        if (shed[0] + shed[1] + shed[2] > 0) {
+            System.out.println("(overload: shed " + shed[0] + " control, " + shed[1] + " chat and "
+                    + shed[2] + " stale chat packets in the last " + (LOAD_REPORT_MILLIS / 1000) + "s)");
+        }
+    }
+
+    private static void runSelectorLoop(Selector selector) { //to be executed on main thread
+        ByteBuffer scratch = ByteBuffer.allocateDirect(MAX_BUFFER_SIZE); // reused; only non-keep-alives are copied out
+        try {
+            while (true) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isReadable()) {
                         DatagramChannel dc = (DatagramChannel) key.channel();
-                        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+                        scratch.clear();
+
+                        SocketAddress clientAddr = dc.receive(scratch);
+                        if (clientAddr == null) continue;
+                        scratch.flip();
+                        if (scratch.remaining() < HEADER_SIZE) continue; // a runt; never worth a worker's time or a log line
 
-                        SocketAddress clientAddr = dc.receive(buf);
-                        if (clientAddr != null) {
-                            buf.flip();
-                            jobs.submit(() -> handlePayload(dc, buf, clientAddr));
+                        // Keep-alive fast path: refresh the session in place, no worker hand-off.
+                        // Unknown senders still go through the workers so that a session is created,
+                        // and so do returning sessions, whose mailboxes need draining.
+                        if (isKeepAlive(scratch)) {
+                            Session known = sessions.getByAddress((InetSocketAddress) clientAddr);
+                            if (known != null && !known.mailboxed) {
+                                known.heard(System.currentTimeMillis());
+                                continue;
+                            }
                         }
+
+                        ingress.offer(classify(scratch), dc, scratch, clientAddr); // copied into a preallocated slot
                     }
                 }
             }
@@ -231,16 +1156,58 @@ public class M4TChatHub {
 
     public static void main(String[] args) throws IOException {
         active = true;
-        printYourAddresses();
-        System.out.println();
+        parseArgs(args);
+        printYourAddresses(); // runs alongside the port prompt and startup
         resolveTransmissionConfig();
 
         Selector selector = Selector.open();
         DatagramChannel channel = DatagramChannel.open();
+        hubChannel = channel;
         channel.bind(ourSocketAddr);
         channel.configureBlocking(false);
         channel.register(selector, SelectionKey.OP_READ);
 
+        if (multicastGroup != null) {
+            multicastChannel = DatagramChannel.open(multicastGroup.getAddress() instanceof Inet4Address
+                    ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+            multicastChannel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true); // same-host clients
+            timers.scheduleAtFixedRate(M4TChatHub::refreshMulticastMembers,
+                    MULTICAST_REFRESH_MILLIS, MULTICAST_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+            System.out.println("Multicast fan-out to " + multicastGroup.getAddress().getHostAddress()
+                    + ":" + multicastGroup.getPort() + " (TTL " + multicastTtl + ")");
+        }
+
+        List<ChatFilter> filters = new ArrayList<>();
+        if (filterFile != null) {
+            PatternFilter patterns = new PatternFilter(filterFile);
+            patterns.reloadIfChanged();
+            timers.scheduleWithFixedDelay(patterns::reloadIfChanged,
+                    FILTER_RELOAD_MILLIS, FILTER_RELOAD_MILLIS, TimeUnit.MILLISECONDS);
+            filters.add(patterns);
+        }
+        if (spamLimit > 0) {
+            filters.add(new RepeatFilter(spamLimit));
+        }
+        chatFilters = List.copyOf(filters);
+
+        ingress = new IngressQueue(Math.max(16, ingressCapacity / 4), ingressCapacity, waitStrategy);
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            Thread worker = new Thread(M4TChatHub::runWorkerLoop, "HubWorker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        timers.scheduleAtFixedRate(M4TChatHub::reportShedLoad,
+                LOAD_REPORT_MILLIS, LOAD_REPORT_MILLIS, TimeUnit.MILLISECONDS);
+        timers.scheduleAtFixedRate(mailboxes::expire, 1, 1, TimeUnit.HOURS);
+        timers.scheduleAtFixedRate(M4TChatHub::expireIntroductions,
+                INTRODUCTION_TIMEOUT_MILLIS, INTRODUCTION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+        if (frontDoor != null) {
+            System.out.println("Front door for " + frontDoor.size() + " hubs; clients are redirected, not served");
+        } else if (!peerHubs.isEmpty()) {
+            System.out.println("Forwarding room traffic to " + peerHubs.size() + " peer hubs");
+        }
         System.out.println("Hub active on port " + ourSocketAddr.getPort());
         runSelectorLoop(selector);
     }
@@ -250,60 +1217,1219 @@ public class M4TChatHub {
     /////////////////////
 
     public static class Session {
-        public String username;
+        private static final Map<String, byte[]> NICKNAME_POOL = new ConcurrentHashMap<>();
+        private static final int NICKNAME_POOL_LIMIT = 65_536;
+        private static final int RECENT_MESSAGES = 32; // chat a retransmission is recognised against
+
+        private volatile byte[] username; // UTF-8; nicknames are interned so that duplicates share one array
         public InetSocketAddress socketAddr;
-        public long lastTransmissionTime;
+        public volatile long lastTransmissionTime; // also refreshed by the selector thread's keep-alive fast path
+        public final short discriminator; // handed to the client in E2SALVE; stamped on frames it originates
+        public volatile int maxPayload = BUFFER_SIZE; // negotiated through mtu= in SALVE, or |^~MTU
+        public volatile boolean multicastMember = false;
+        public volatile int multicastProbe = 0;
+        public volatile long multicastConfirmedTime = 0;
+        public volatile Session relayPeer = null; // set when an introduced pair failed to connect directly
+        public volatile String identity = null; // token from SALVE; keys the offline mailbox
+        public volatile boolean mailboxed = false; // room traffic goes to the mailbox until it is drained
+        public volatile Fec fec = null; // set when SALVE asked for forward error correction
+        public volatile long unreachableMillis = UNREACHABLE_MILLIS; // widened with the client's keep-alive interval
+        public volatile long keepAliveProbeDue = 0; // when the pending |^~KAPROBE answer goes out
+        public volatile long widenedUnreachableMillis = 0; // set once |^~KAPROBEOK is sent; applied when the client is heard again
+        private long[] recentMessages = null; // message id and content hash, from the first chat on; guarded by this
+        private int recentNext = 0;
 
-        public Session(String their_uname, InetSocketAddress their_socketAddr) {
-            username = their_uname;
+        public Session(String their_uname, InetSocketAddress their_socketAddr, short their_discriminator) {
+            username = their_uname.getBytes(StandardCharsets.UTF_8);
             socketAddr = their_socketAddr;
+            discriminator = their_discriminator;
             lastTransmissionTime = System.currentTimeMillis();
         }
+
+        /// records traffic from the client. the first packet after a |^~KAPROBEOK went out applies its widening.
+        void heard(long now) {
+            lastTransmissionTime = now;
+            long widened = widenedUnreachableMillis;
+            if (widened != 0) {
+                unreachableMillis = widened;
+                widenedUnreachableMillis = 0;
+            }
+        }
+
+        public String username() {
+            return new String(username, StandardCharsets.UTF_8);
+        }
+
+        /// remembers a chat message; false if the same id carried the same content lately, i.e. a retransmission.
+        /// the content hash keeps an unrelated message that happens to draw a recent random id from being dropped.
+        public synchronized boolean firstSighting(short messageId, int contentHash) {
+            long key = ((long) (messageId & 0xFFFF) << 32 | (contentHash & 0xFFFFFFFFL)) + 1; // + 1: 0 marks an empty slot
+            if (recentMessages == null) recentMessages = new long[RECENT_MESSAGES]; // lurkers never pay for it
+            for (long recent : recentMessages) {
+                if (recent == key) return false;
+            }
+            recentMessages[recentNext] = key;
+            recentNext = (recentNext + 1) % RECENT_MESSAGES;
+            return true;
+        }
+
+        public byte[] usernameBytes() {
+            return username;
+        }
+
+        public void setUsername(String nickname) {
+            if (NICKNAME_POOL.size() > NICKNAME_POOL_LIMIT) NICKNAME_POOL.clear();
+            username = NICKNAME_POOL.computeIfAbsent(nickname, n -> n.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    public enum Priority { CONTROL, CHAT }
+
+    /// room sequence counter plus a bounded ring of the frames it stamped.
+    /// frames are kept as sent (|^~SEQ <seq> <message>) so a repair is byte-identical,
+    /// which lets clients drop duplicates by message id.
+    public static class RetransmitRing {
+        private static final byte[] NAME_OPEN = "[".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] NAME_CLOSE = "]: ".getBytes(StandardCharsets.US_ASCII);
+
+        public static final class Entry {
+            public final long seq;
+            public final byte[] frame;
+            public final int messageOffset; // where the message starts, past the header and |^~SEQ <seq>
+            public final short senderDiscriminator;
+
+            Entry(long seq, byte[] frame, int messageOffset, short senderDiscriminator) {
+                this.seq = seq;
+                this.frame = frame;
+                this.messageOffset = messageOffset;
+                this.senderDiscriminator = senderDiscriminator;
+            }
+
+            /// a copy of the message without the frame header and sequence prefix.
+            public byte[] message() {
+                return Arrays.copyOfRange(frame, messageOffset, frame.length);
+            }
+        }
+
+        private final Entry[] ring;
+        private long nextSeq = 1;
+
+        public RetransmitRing(int capacity) {
+            ring = new Entry[capacity];
+        }
+
+        /// stamps "[<username>]: <content>", or the bare content when username is null.
+        /// the frame is assembled from the given bytes directly; nothing is decoded or re-encoded.
+        public synchronized Entry stamp(short senderDiscriminator, byte[] username, byte[] content, int offset, int length) {
+            long seq = nextSeq++;
+            short randomId = (short)ThreadLocalRandom.current().nextInt(0,65536);
+            byte[] seqPrefix = ("|^~SEQ " + seq + " ").getBytes(StandardCharsets.US_ASCII);
+            int nameLength = username == null ? 0 : NAME_OPEN.length + username.length + NAME_CLOSE.length;
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + seqPrefix.length + nameLength + length);
+            frame.putShort(randomId).putShort(senderDiscriminator).put(seqPrefix);
+            if (username != null) frame.put(NAME_OPEN).put(username).put(NAME_CLOSE);
+            frame.put(content, offset, length);
+            Entry entry = new Entry(seq, frame.array(), HEADER_SIZE + seqPrefix.length, senderDiscriminator);
+            ring[(int) Math.floorMod(seq, (long) ring.length)] = entry;
+            return entry;
+        }
+
+        public synchronized Entry get(long seq) {
+            Entry entry = ring[(int) Math.floorMod(seq, (long) ring.length)];
+            return entry != null && entry.seq == seq ? entry : null;
+        }
+    }
+
+    /// a preallocated ingress slot. it owns its receive buffer: a producer copies a datagram in, and the worker
+    /// that claimed the slot reads it in place, so handing a packet over allocates nothing.
+    public static final class Ingress {
+        DatagramChannel channel;
+        final ByteBuffer data = ByteBuffer.allocate(MAX_BUFFER_SIZE);
+        SocketAddress client;
+        long enqueuedNanos;
+    }
+
+    /// how idle workers wait for ingress: BLOCKING parks them (and costs producers a signal only while some
+    /// worker is parked), YIELDING and BUSY_SPIN keep polling, trading CPU for wake-up latency.
+    public enum WaitStrategy { BLOCKING, YIELDING, BUSY_SPIN }
+
+    /// a bounded multi-producer multi-consumer ring of preallocated slots (Vyukov's sequence-per-slot design).
+    /// a slot whose sequence equals its position is free for that lap; position + 1 means published; a consumer
+    /// frees it for the next lap by setting position + capacity. producers claim one slot with a CAS on tail,
+    /// consumers claim a run of published slots with one CAS on head. no locks, no per-packet allocation.
+    public static final class IngressLane {
+        private final Ingress[] slots;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+
+        IngressLane(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1; // next power of two
+            slots = new Ingress[size];
+            sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                slots[i] = new Ingress();
+                sequences.set(i, i);
+            }
+            mask = size - 1;
+        }
+
+        boolean isFull() {
+            return tail.get() - head.get() > mask;
+        }
+
+        boolean isEmpty() {
+            long pos = head.get();
+            return sequences.get((int) (pos & mask)) != pos + 1;
+        }
+
+        /// copies the packet's remaining bytes into a free slot and publishes it. returns false if the lane is full.
+        boolean offer(DatagramChannel channel, ByteBuffer packet, SocketAddress client) {
+            long pos = tail.get();
+            while (true) {
+                long lag = sequences.get((int) (pos & mask)) - pos;
+                if (lag == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) break;
+                    pos = tail.get();
+                } else if (lag < 0) {
+                    return false; // a whole lap behind: full
+                } else {
+                    pos = tail.get(); // another producer took it
+                }
+            }
+            Ingress slot = slots[(int) (pos & mask)];
+            slot.channel = channel;
+            slot.client = client;
+            slot.enqueuedNanos = System.nanoTime();
+            slot.data.clear();
+            if (packet.remaining() > slot.data.capacity()) packet.limit(packet.position() + slot.data.capacity()); // as UDP would truncate
+            slot.data.put(packet).flip();
+            sequences.set((int) (pos & mask), pos + 1);
+            return true;
+        }
+
+        /// claims up to max consecutive published slots; first[0] receives the first claimed position.
+        /// returns how many were claimed, 0 if none are published.
+        int claim(long[] first, int max) {
+            while (true) {
+                long pos = head.get();
+                int count = 0;
+                while (count < max && sequences.get((int) ((pos + count) & mask)) == pos + count + 1) count++;
+                if (count == 0) return 0;
+                if (head.compareAndSet(pos, pos + count)) {
+                    first[0] = pos;
+                    return count;
+                }
+            }
+        }
+
+        Ingress slot(long pos) {
+            return slots[(int) (pos & mask)];
+        }
+
+        /// hands a claimed slot back to producers, for the next lap.
+        void release(long pos) {
+            sequences.set((int) (pos & mask), pos + mask + 1);
+        }
     }
 
+    /// bounded hand-off between the producers (selector, shared-memory poller) and the workers, one lane per priority.
+    /// workers always drain the control lane first. a full lane sheds the newest packet,
+    /// and chat that waited longer than MAX_CHAT_QUEUE_DELAY_NANOS is shed at dequeue;
+    /// both are counted rather than silently absorbed.
+    public static class IngressQueue {
+        final IngressLane control;
+        final IngressLane chat;
+        private final WaitStrategy strategy;
+        private final ReentrantLock sleepLock = new ReentrantLock();
+        private final Condition workAvailable = sleepLock.newCondition();
+        private volatile int sleepers = 0; // written under sleepLock
+        private final AtomicLong droppedControl = new AtomicLong();
+        private final AtomicLong droppedChat = new AtomicLong();
+        private final AtomicLong droppedStale = new AtomicLong();
+
+        public IngressQueue(int controlCapacity, int chatCapacity, WaitStrategy strategy) {
+            control = new IngressLane(controlCapacity);
+            chat = new IngressLane(chatCapacity);
+            this.strategy = strategy;
+        }
+
+        private IngressLane lane(Priority priority) {
+            return priority == Priority.CONTROL ? control : chat;
+        }
+
+        public boolean isFull(Priority priority) {
+            return lane(priority).isFull();
+        }
+
+        public void recordDrop(Priority priority) {
+            (priority == Priority.CONTROL ? droppedControl : droppedChat).incrementAndGet();
+        }
+
+        public void recordStale() {
+            droppedStale.incrementAndGet();
+        }
+
+        /// copies a packet into its lane, or counts it as shed.
+        public boolean offer(Priority priority, DatagramChannel channel, ByteBuffer packet, SocketAddress client) {
+            if (!lane(priority).offer(channel, packet, client)) {
+                recordDrop(priority);
+                return false;
+            }
+            // the published slot and this read of sleepers are both volatile, so a worker going to sleep
+            // either sees the slot or is seen here; no wake-up is lost
+            if (sleepers > 0) {
+                sleepLock.lock();
+                try {
+                    workAvailable.signal();
+                } finally {
+                    sleepLock.unlock();
+                }
+            }
+            return true;
+        }
+
+        /// called by a worker that found both lanes empty. returns the updated idle round count.
+        int awaitWork(int idleRounds) throws InterruptedException {
+            switch (strategy) {
+                case BUSY_SPIN:
+                    Thread.onSpinWait();
+                    return idleRounds + 1;
+                case YIELDING:
+                    Thread.yield();
+                    return idleRounds + 1;
+                default:
+                    if (idleRounds < 100) { // a short spin catches back-to-back packets without a park
+                        Thread.onSpinWait();
+                        return idleRounds + 1;
+                    }
+                    sleepLock.lockInterruptibly();
+                    try {
+                        sleepers++;
+                        while (control.isEmpty() && chat.isEmpty()) {
+                            workAvailable.awaitNanos(10_000_000);
+                        }
+                    } finally {
+                        sleepers--;
+                        sleepLock.unlock();
+                    }
+                    return 0;
+            }
+        }
+
+        /// returns {control, chat, stale} drop counts since the previous call.
+        public long[] drainDropCounts() {
+            return new long[] {droppedControl.getAndSet(0), droppedChat.getAndSet(0), droppedStale.getAndSet(0)};
+        }
+    }
+
+    /// bounded store-and-forward queue of room messages for one identity.
+    /// the first MAILBOX_MEMORY_MESSAGES stay in memory; later ones are appended to a spill file
+    /// (length-prefixed records), so order is memory first, then file. the spill file is opened once,
+    /// on the first spill, and kept open for appends and drains until the mailbox closes.
+    public static class Mailbox {
+        final String identity;
+        final long createdTime = System.currentTimeMillis();
+        private final ArrayDeque<byte[]> memory = new ArrayDeque<>();
+        private final Path spillFile;
+        private FileChannel spill = null; // opened lazily on the first spill
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        private long spillBytes = 0;      // bytes appended so far
+        private long spillReadOffset = 0; // bytes already drained
+        private long lastSeq = -1;        // room sequence of the newest stored message
+        private long dropped = 0;
+        private boolean closed = false;
+        private Session drainTarget = null;
+        private ScheduledFuture<?> drainTask = null;
+        volatile Session session = null;  // the identity's latest session; MailboxStore.orphan() checks it on reap
+
+        Mailbox(String identity, Path dir) {
+            this.identity = identity;
+            this.spillFile = dir.resolve(fileNameFor(identity) + ".mbox");
+        }
+
+        /// identity tokens are alphanumeric, but a client could send anything
+        private static String fileNameFor(String identity) {
+            if (identity.matches("[A-Za-z0-9]{1,64}")) return identity;
+            return Integer.toHexString(identity.hashCode()) + "-" + identity.length();
+        }
+
+        synchronized boolean put(long seq, byte[] message) {
+            if (closed) return false;
+            if (seq == lastSeq) return true; // already stored for this broadcast
+            lastSeq = seq;
+            if (memory.size() < MAILBOX_MEMORY_MESSAGES && spillReadOffset == spillBytes) {
+                memory.addLast(message);
+                return true;
+            }
+            if (spillBytes + 4 + message.length > MAILBOX_SPILL_BYTES) {
+                dropped++;
+                return true;
+            }
+            try {
+                if (spill == null) {
+                    Files.createDirectories(spillFile.getParent());
+                    spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+                lengthBuffer.clear();
+                lengthBuffer.putInt(message.length).flip();
+                writeFully(lengthBuffer, spillBytes);
+                writeFully(ByteBuffer.wrap(message), spillBytes + 4);
+                spillBytes += 4 + message.length;
+            } catch (IOException ex) {
+                dropped++;
+                Logger.getLogger(M4TChatHub.class.getName()).log(Level.WARNING, "Mailbox spill failed", ex);
+            }
+            return true;
+        }
+
+        synchronized List<byte[]> takeBatch(int max) {
+            List<byte[]> batch = new ArrayList<>(max);
+            while (batch.size() < max && !memory.isEmpty()) batch.add(memory.pollFirst());
+            if (batch.size() < max && spillReadOffset < spillBytes) {
+                try {
+                    while (batch.size() < max && spillReadOffset < spillBytes) {
+                        lengthBuffer.clear();
+                        readFully(lengthBuffer, spillReadOffset);
+                        byte[] message = new byte[lengthBuffer.getInt(0)];
+                        readFully(ByteBuffer.wrap(message), spillReadOffset + 4);
+                        spillReadOffset += 4 + message.length;
+                        batch.add(message);
+                    }
+                } catch (IOException ex) {
+                    spillReadOffset = spillBytes; // unreadable spill; skip it rather than stall
+                    Logger.getLogger(M4TChatHub.class.getName()).log(Level.WARNING, "Mailbox spill unreadable", ex);
+                }
+            }
+            return batch;
+        }
+
+        private void writeFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) position += spill.write(buf, position);
+        }
+
+        private void readFully(ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                int n = spill.read(buf, position);
+                if (n < 0) throw new IOException("Mailbox spill truncated");
+                position += n;
+            }
+        }
+
+        /// closes the mailbox if nothing is left; the caller then stops draining.
+        synchronized boolean closeIfEmpty() {
+            if (!memory.isEmpty() || spillReadOffset < spillBytes) return false;
+            close();
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+            memory.clear();
+            try {
+                if (spill != null) spill.close();
+                spill = null;
+                Files.deleteIfExists(spillFile);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /// offline mailboxes keyed by SALVE identity token.
+    /// a mailbox opens when room traffic finds its session unreachable, keeps collecting after the
+    /// session is reaped, and is drained in paced batches once the identity shows up again.
+    /// mailboxes whose session was reaped are also kept in a set of their own, so that a broadcast
+    /// only walks those, however many identities were seen lately.
+    public static class MailboxStore {
+        private final Map<String, Mailbox> byIdentity = new ConcurrentHashMap<>();
+        private final Set<Mailbox> orphans = ConcurrentHashMap.newKeySet();
+
+        public boolean isCollecting(String identity) {
+            return byIdentity.containsKey(identity);
+        }
+
+        public boolean hasOrphans() {
+            return !orphans.isEmpty();
+        }
+
+        /// called as a session is reaped. its mailbox, if it has one, now collects room traffic on its own.
+        public void orphan(Session reaped) {
+            if (reaped.identity == null) return;
+            Mailbox box = byIdentity.get(reaped.identity);
+            if (box != null && box.session == reaped) orphans.add(box); // not if a newer session took it over
+        }
+
+        /// stores a room message for an unreachable or still-draining session.
+        /// returns false if the message should be sent live instead.
+        public boolean offer(Session recipient, long seq, byte[] message) {
+            Mailbox box = byIdentity.get(recipient.identity);
+            if (box == null) {
+                if (byIdentity.size() >= MAX_MAILBOXES) return false;
+                box = byIdentity.computeIfAbsent(recipient.identity, id -> new Mailbox(id, mailboxDir));
+                recipient.mailboxed = true;
+            }
+            box.session = recipient;
+            orphans.remove(box);
+            return box.put(seq, message);
+        }
+
+        /// stores a room message in the mailboxes of identities whose session was reaped. live sessions,
+        /// the sender's included, were already handled by broadcastToRoom: sent to, or stored through offer().
+        public void offerOrphans(long seq, byte[] message, Session sender) {
+            for (Mailbox box : orphans) {
+                if (sender != null && box.identity.equals(sender.identity)) continue; // never mail a sender its own message
+                box.put(seq, message);
+            }
+        }
+
+        /// starts draining an identity's mailbox to its (new) session, unless already doing so.
+        public void beginDrain(Session session) {
+            Mailbox box = byIdentity.get(session.identity);
+            if (box == null) {
+                session.mailboxed = false;
+                return;
+            }
+            synchronized (box) {
+                if (box.drainTarget == session) return;
+                if (box.drainTask != null) box.drainTask.cancel(false);
+                box.drainTarget = session;
+                box.session = session;
+                orphans.remove(box);
+                // the mailbox is unsequenced; stop the client from NACKing the gap it left
+                sendMsg(hubChannel, "|^~SEQRESET", session);
+                System.out.println("(" + session.username() + " is back; delivering missed messages)");
+                box.drainTask = timers.scheduleAtFixedRate(() -> drainBatch(box, session),
+                        0, MAILBOX_DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void drainBatch(Mailbox box, Session session) {
+            List<byte[]> batch = box.takeBatch(MAILBOX_DRAIN_BATCH);
+            for (byte[] message : batch) {
+                sendMsg(hubChannel, new String(message, StandardCharsets.UTF_8), session);
+            }
+            if (batch.isEmpty() && box.closeIfEmpty()) {
+                byIdentity.remove(box.identity, box);
+                orphans.remove(box);
+                session.mailboxed = false;
+                if (box.dropped > 0) {
+                    sendMsg(hubChannel, "(" + box.dropped + " messages were dropped while you were away.)", session);
+                }
+                synchronized (box) {
+                    box.drainTask.cancel(false);
+                }
+            }
+        }
+
+        public void expire() {
+            long now = System.currentTimeMillis();
+            byIdentity.values().removeIf(box -> {
+                synchronized (box) {
+                    if (box.drainTarget != null || now - box.createdTime <= MAILBOX_RETENTION_MILLIS) return false;
+                    box.close();
+                    orphans.remove(box);
+                    return true;
+                }
+            });
+        }
+    }
+
+    /// a stage of the chat filter pipeline. it may rewrite content bytes in place, but not change their length.
+    /// returns null to let the message through, or the reason it is dropped, which the sender is told.
+    /// fragments are filtered one at a time on their text alone: a pattern split across two fragments is not
+    /// seen, and a blocked fragment drops only itself, so the recipient never completes that message.
+    public interface ChatFilter {
+        String check(Session sender, byte[] content, int offset, int length);
+    }
+
+    /// masks or blocks messages containing any pattern of a word list, in one pass over the UTF-8 bytes
+    /// however long the list is. the list is compiled into an Aho-Corasick automaton; a changed file is
+    /// compiled on the timer thread and swapped in whole, so traffic never waits for a reload.
+    /// file format: one pattern per line, matched case-insensitively for ASCII letters; a leading ! blocks
+    /// the whole message instead of masking the match with *; blank lines and lines starting with # are ignored.
+    public static class PatternFilter implements ChatFilter {
+        private final Path file;
+        private volatile Automaton automaton = Automaton.compile(List.of(), List.of());
+        private long loadedModified = Long.MIN_VALUE;
+
+        PatternFilter(Path file) {
+            this.file = file;
+        }
+
+        public String check(Session sender, byte[] content, int offset, int length) {
+            return automaton.scan(content, offset, length) ? "it contains a blocked word" : null;
+        }
+
+        /// recompiles the list if the file changed since it was last loaded. runs on the timer thread.
+        void reloadIfChanged() {
+            try {
+                long modified = Files.getLastModifiedTime(file).toMillis();
+                if (modified == loadedModified) return;
+                List<byte[]> patterns = new ArrayList<>();
+                List<Boolean> blocking = new ArrayList<>();
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String pattern = line.strip();
+                    if (pattern.isEmpty() || pattern.startsWith("#")) continue;
+                    boolean block = pattern.startsWith("!");
+                    if (block) pattern = pattern.substring(1);
+                    if (pattern.isEmpty()) continue;
+                    patterns.add(pattern.getBytes(StandardCharsets.UTF_8));
+                    blocking.add(block);
+                }
+                automaton = Automaton.compile(patterns, blocking);
+                loadedModified = modified;
+                System.out.println("(filter: " + patterns.size() + " patterns loaded from " + file + ")");
+            } catch (IOException e) {
+                System.out.println("(filter: could not read " + file + ": " + e.getMessage() + ")");
+            }
+        }
+    }
+
+    /// an Aho-Corasick automaton over bytes, flattened into a full transition table.
+    /// bytes that occur in no pattern share one column, so the table is states x (distinct pattern bytes + 1).
+    /// each state records the longest pattern ending there (following the failure links) and whether any of those
+    /// patterns blocks, so scanning needs no failure-link walks.
+    static final class Automaton {
+        private final int[] columnOf = new int[256];
+        private final int width;
+        private final int[] next; // state * width + column
+        private final int[] maskLength;
+        private final boolean[] blocks;
+
+        private Automaton(int width, int[] next, int[] maskLength, boolean[] blocks, int[] columnOf) {
+            this.width = width;
+            this.next = next;
+            this.maskLength = maskLength;
+            this.blocks = blocks;
+            System.arraycopy(columnOf, 0, this.columnOf, 0, 256);
+        }
+
+        private static int fold(int b) {
+            return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+        }
+
+        static Automaton compile(List<byte[]> patterns, List<Boolean> blocking) {
+            int[] columnOf = new int[256];
+            int width = 1; // column 0 stands for every byte no pattern uses
+            for (byte[] pattern : patterns) {
+                for (byte b : pattern) {
+                    int folded = fold(b & 0xff);
+                    if (columnOf[folded] == 0) columnOf[folded] = width++;
+                }
+            }
+            for (int b = 'A'; b <= 'Z'; b++) columnOf[b] = columnOf[b + ('a' - 'A')];
+
+            // trie
+            List<int[]> goTo = new ArrayList<>();
+            List<Integer> depthOut = new ArrayList<>();
+            List<Boolean> blockOut = new ArrayList<>();
+            goTo.add(newRow(width));
+            depthOut.add(0);
+            blockOut.add(false);
+            for (int p = 0; p < patterns.size(); p++) {
+                int state = 0;
+                for (byte b : patterns.get(p)) {
+                    int column = columnOf[b & 0xff];
+                    if (goTo.get(state)[column] < 0) {
+                        goTo.get(state)[column] = goTo.size();
+                        goTo.add(newRow(width));
+                        depthOut.add(0);
+                        blockOut.add(false);
+                    }
+                    state = goTo.get(state)[column];
+                }
+                depthOut.set(state, Math.max(depthOut.get(state), patterns.get(p).length));
+                blockOut.set(state, blockOut.get(state) || blocking.get(p));
+            }
+
+            // breadth-first: failure links, inherited outputs, and the full transition table
+            int states = goTo.size();
+            int[] next = new int[states * width];
+            int[] fail = new int[states];
+            int[] maskLength = new int[states];
+            boolean[] blocks = new boolean[states];
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int c = 0; c < width; c++) {
+                int child = goTo.get(0)[c];
+                if (child > 0) {
+                    next[c] = child;
+                    queue.add(child);
+                } // else the root loops to itself: next[c] stays 0
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                maskLength[state] = Math.max(depthOut.get(state), maskLength[fail[state]]);
+                blocks[state] = blockOut.get(state) || blocks[fail[state]];
+                for (int c = 0; c < width; c++) {
+                    int child = goTo.get(state)[c];
+                    if (child > 0) {
+                        fail[child] = next[fail[state] * width + c];
+                        next[state * width + c] = child;
+                        queue.add(child);
+                    } else {
+                        next[state * width + c] = next[fail[state] * width + c];
+                    }
+                }
+            }
+            return new Automaton(width, next, maskLength, blocks, columnOf);
+        }
+
+        private static int[] newRow(int width) {
+            int[] row = new int[width];
+            Arrays.fill(row, -1);
+            return row;
+        }
+
+        /// masks every match with * in place. returns true if a blocking pattern matched.
+        boolean scan(byte[] content, int offset, int length) {
+            boolean blocked = false;
+            int state = 0;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                state = next[state * width + columnOf[content[i] & 0xff]];
+                int matched = maskLength[state];
+                if (matched > 0) {
+                    blocked |= blocks[state];
+                    Arrays.fill(content, i - matched + 1, i + 1, (byte) '*'); // already consumed, so safe to overwrite
+                }
+            }
+            return blocked;
+        }
+    }
+
+    /// drops a message once identical content was relayed more than limit times within SPAM_WINDOW_MILLIS,
+    /// from anyone. content hashes live in a small direct-mapped cache, so memory stays fixed and an evicted
+    /// hash simply starts counting again.
+    public static class RepeatFilter implements ChatFilter {
+        private final int limit;
+        private final long[] hashes = new long[SPAM_CACHE_SIZE];
+        private final long[] windowStart = new long[SPAM_CACHE_SIZE];
+        private final int[] counts = new int[SPAM_CACHE_SIZE];
+
+        RepeatFilter(int limit) {
+            this.limit = limit;
+        }
+
+        public String check(Session sender, byte[] content, int offset, int length) {
+            long h = 0xcbf29ce484222325L; // 64-bit FNV-1a
+            for (int i = offset; i < offset + length; i++) {
+                h = (h ^ (content[i] & 0xff)) * 0x100000001b3L;
+            }
+            int slot = (int) (h ^ (h >>> 32)) & (SPAM_CACHE_SIZE - 1);
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                if (hashes[slot] != h || now - windowStart[slot] > SPAM_WINDOW_MILLIS) {
+                    hashes[slot] = h;
+                    windowStart[slot] = now;
+                    counts[slot] = 0;
+                }
+                return ++counts[slot] > limit ? "the same message was just sent " + limit + " times" : null;
+            }
+        }
+    }
+
+    /// one single-producer single-consumer queue inside a shared-memory file.
+    /// layout from the ring's base: the consumer's head counter, the producer's tail counter on the next cache line,
+    /// then SLOTS fixed-size slots of a length int followed by the frame. the counters only grow; each side
+    /// publishes its own with release semantics and reads the other's with acquire, so no locks cross processes.
+    /// the client's SharedMemoryLink uses the identical layout.
+    public static final class ShmRing {
+        static final int SLOTS = 256;
+        static final int SLOT_SIZE = 2048;
+        static final int HEAD = 0;
+        static final int TAIL = 64;
+        static final int HEADER = 128;
+        static final int SIZE = HEADER + SLOTS * SLOT_SIZE;
+        private static final VarHandle COUNTER = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final MappedByteBuffer map;
+        private final int base;
+        private final ByteBuffer view; // positioned per access; owned by this ring's single producer or consumer
+
+        ShmRing(MappedByteBuffer map, int base) {
+            this.map = map;
+            this.base = base;
+            this.view = map.duplicate();
+        }
+
+        /// copies the frame's remaining bytes into the next slot. returns false if the ring is full or the frame
+        /// does not fit a slot. hub workers share the producer side, so offers are serialized here.
+        synchronized boolean offer(ByteBuffer frame) {
+            int length = frame.remaining();
+            if (length > SLOT_SIZE - 4) return false;
+            long tail = (long) COUNTER.getOpaque(map, base + TAIL);
+            long head = (long) COUNTER.getAcquire(map, base + HEAD);
+            if (tail - head >= SLOTS) return false;
+            int slot = base + HEADER + (int) (tail % SLOTS) * SLOT_SIZE;
+            view.clear().position(slot);
+            view.putInt(length).put(frame);
+            COUNTER.setRelease(map, base + TAIL, tail + 1);
+            return true;
+        }
+
+        /// takes the next frame, or returns null if the ring is empty. only the poller thread calls this.
+        byte[] poll() {
+            long head = (long) COUNTER.getOpaque(map, base + HEAD);
+            long tail = (long) COUNTER.getAcquire(map, base + TAIL);
+            if (head == tail) return null;
+            int slot = base + HEADER + (int) (head % SLOTS) * SLOT_SIZE;
+            int length = map.getInt(slot);
+            byte[] frame = new byte[length < 0 || length > SLOT_SIZE - 4 ? 0 : length]; // corrupt slots are dropped
+            view.clear().position(slot + 4);
+            view.get(frame);
+            COUNTER.setRelease(map, base + HEAD, head + 1);
+            return frame;
+        }
+    }
+
+    /// a same-host client's pair of rings: the client produces into inbound, the hub into outbound.
+    public static final class ShmLink {
+        static final int MAGIC = 0x4D345452; // "M4TR"
+        static final int VERSION = 1;
+        static final int PREAMBLE = 64;
+        static final long FILE_SIZE = PREAMBLE + 2L * ShmRing.SIZE;
+        static final Path SHM_DIR = Paths.get("/dev/shm");
+
+        final InetSocketAddress client;
+        final ShmRing inbound;
+        final ShmRing outbound;
+
+        private ShmLink(MappedByteBuffer map, InetSocketAddress client) {
+            this.client = client;
+            this.inbound = new ShmRing(map, PREAMBLE);
+            this.outbound = new ShmRing(map, PREAMBLE + ShmRing.SIZE);
+        }
+
+        /// maps a client's ring file, after checking that it is one.
+        static ShmLink open(Path path, InetSocketAddress client) throws IOException {
+            String name = path.getFileName() == null ? "" : path.getFileName().toString();
+            if (!SHM_DIR.equals(path.getParent()) || !name.matches("m4t-[0-9a-f]{16,32}\\.ring")) {
+                throw new IOException("not a ring file");
+            }
+            try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (file.size() != FILE_SIZE) throw new IOException("unexpected ring file size");
+                MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("unknown ring format");
+                return new ShmLink(map, client);
+            }
+        }
+    }
+
+    /// consistent-hash ring over the back-end hubs of a pool.
+    /// every hub owns HASH_RING_POINTS points on the ring and a key belongs to the first point at or after its hash,
+    /// so adding a hub only moves the keys that land just before its new points: about 1/n of all clients.
+    public static class HashRing {
+        private final TreeMap<Long, InetSocketAddress> points = new TreeMap<>();
+        private final int size;
+
+        HashRing(List<InetSocketAddress> hubs) {
+            for (InetSocketAddress hub : hubs) {
+                String name = hub.getAddress().getHostAddress() + ":" + hub.getPort();
+                for (int i = 0; i < HASH_RING_POINTS; i++) {
+                    points.put(hash(name + "#" + i), hub);
+                }
+            }
+            size = hubs.size();
+        }
+
+        InetSocketAddress route(String key) {
+            Map.Entry<Long, InetSocketAddress> owner = points.ceilingEntry(hash(key));
+            return (owner != null ? owner : points.firstEntry()).getValue();
+        }
+
+        int size() {
+            return size;
+        }
+
+        /// 64-bit FNV-1a, finished with murmur3's avalanche so that similar keys scatter.
+        static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+                h = (h ^ (b & 0xff)) * 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+    }
+
+    /// looks up local and public addresses concurrently, each within a hard timeout.
+    /// public addresses are cached on disk per lookup endpoint for IP_CACHE_TTL_MILLIS, so restarts on an
+    /// offline machine do not wait again, and a local stand-in endpoint never mixes with real answers.
+    public static class AddressDiscovery {
+        private static final ExecutorService LOOKUPS = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "AddressDiscovery");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private final List<String> endpoints;
+        private final int timeoutMillis;
+        private final Path cacheFile;
+
+        AddressDiscovery(List<String> endpoints, int timeoutMillis, Path cacheFile) {
+            this.endpoints = endpoints;
+            this.timeoutMillis = timeoutMillis;
+            this.cacheFile = cacheFile;
+        }
+
+        /// completes with the printable report once every lookup has answered or timed out.
+        CompletableFuture<String> report() {
+            Properties cache = loadCache();
+            CompletableFuture<String> local = CompletableFuture.supplyAsync(AddressDiscovery::localAddresses, LOOKUPS)
+                    .completeOnTimeout(" - Could not enumerate interfaces in time\n", timeoutMillis, TimeUnit.MILLISECONDS);
+            List<CompletableFuture<String>> lookups = new ArrayList<>();
+            for (String endpoint : endpoints) {
+                lookups.add(CompletableFuture.supplyAsync(() -> publicAddress(endpoint, cache), LOOKUPS)
+                        // a hard bound: connect and read timeouts do not cover DNS resolution
+                        .completeOnTimeout(" - Public address via " + endpoint + ": Could not determine (timed out)\n",
+                                timeoutMillis, TimeUnit.MILLISECONDS));
+            }
+            return CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).thenCombine(local, (ignored, locals) -> {
+                StringBuilder report = new StringBuilder("Your Local IP addresses:\n").append(locals);
+                if (!lookups.isEmpty()) {
+                    report.append("\nYour Public IP addresses:\n");
+                    for (CompletableFuture<String> lookup : lookups) report.append(lookup.join());
+                }
+                saveCache(cache);
+                return report.toString();
+            });
+        }
+
+        private static String localAddresses() {
+            StringBuilder out = new StringBuilder();
+            try {
+                Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+                while (interfaces.hasMoreElements()) {
+                    NetworkInterface ni = interfaces.nextElement();
+                    if (!ni.isUp() || ni.isLoopback()) continue;
+
+                    Enumeration<InetAddress> addresses = ni.getInetAddresses();
+                    while (addresses.hasMoreElements()) {
+                        InetAddress addr = addresses.nextElement();
+                        out.append(" - ").append(addr.getHostAddress())
+                                .append(" (").append(addr instanceof Inet4Address ? "IPv4" : "IPv6").append(")\n");
+                    }
+                }
+            } catch (SocketException e) {
+                System.getLogger("M4TChatProgram")
+                      .log(System.Logger.Level.ERROR, "Exception during address checks", e);
+            }
+            return out.toString();
+        }
+
+        private String publicAddress(String endpoint, Properties cache) {
+            String cached = cache.getProperty(endpoint);
+            if (cached != null) {
+                int space = cached.indexOf(' ');
+                try {
+                    if (space > 0 && System.currentTimeMillis() - Long.parseLong(cached.substring(0, space)) < IP_CACHE_TTL_MILLIS) {
+                        return describe(cached.substring(space + 1), endpoint, " (cached)");
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            try {
+                HttpURLConnection conn = (HttpURLConnection) new URL(endpoint).openConnection();
+                conn.setConnectTimeout(timeoutMillis);
+                conn.setReadTimeout(timeoutMillis);
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                    String address = in.readLine();
+                    if (address == null || address.isBlank()) {
+                        return " - Public address via " + endpoint + ": Could not determine (empty answer)\n";
+                    }
+                    address = address.trim();
+                    synchronized (cache) {
+                        cache.setProperty(endpoint, System.currentTimeMillis() + " " + address);
+                    }
+                    return describe(address, endpoint, "");
+                } finally {
+                    conn.disconnect();
+                }
+            } catch (IOException | RuntimeException e) {
+                return " - Public address via " + endpoint + ": Could not determine (" + e.getMessage() + ")\n";
+            }
+        }
+
+        private static String describe(String address, String endpoint, String note) {
+            return " - Public " + (address.indexOf(':') == -1 ? "IPv4" : "IPv6") + ": " + address
+                    + " (via " + endpoint + ")" + note + "\n";
+        }
+
+        private Properties loadCache() {
+            Properties cache = new Properties();
+            try (BufferedReader in = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+                cache.load(in);
+            } catch (IOException ignored) {
+                // no cache yet, or unreadable; every endpoint is looked up
+            }
+            return cache;
+        }
+
+        private void saveCache(Properties cache) {
+            synchronized (cache) {
+                try (Writer out = Files.newBufferedWriter(cacheFile, StandardCharsets.UTF_8)) {
+                    cache.store(out, "M4T public address cache: <epoch millis> <address> per lookup endpoint");
+                } catch (IOException e) {
+                    Logger.getLogger(M4TChatHub.class.getName()).log(Level.FINE, "Could not write the address cache", e);
+                }
+            }
+        }
+    }
+
+    /// a pending hole-punching attempt between two sessions.
+    public static class Introduction {
+        public final String nonce;
+        public final Session first;
+        public final Session second;
+        public final long createdTime;
+
+        public Introduction(String nonce, Session first, Session second) {
+            this.nonce = nonce;
+            this.first = first;
+            this.second = second;
+            this.createdTime = System.currentTimeMillis();
+        }
+
+        public boolean involves(Session s) {
+            return s == first || s == second;
+        }
+
+        public Session partnerOf(Session s) {
+            return s == first ? second : first;
+        }
+    }
+
+    /// open-addressing session table keyed by the packed client endpoint.
+    /// an endpoint is stored as three primitives: the address as an IPv6 (or IPv4-mapped) 128-bit
+    /// value split into two longs, and the port. lookups run under an optimistic StampedLock read,
+    /// so the per-packet path takes no lock and allocates only the small address copy getAddress() returns;
+    /// the key is packed from that documented API rather than from anything implementation-specific.
+    /// iteration is weakly consistent, like the ConcurrentHashMap this replaces.
     public static class SessionManager implements Iterable<Session> {
-        private final Map<InetSocketAddress, Session> sessions = new ConcurrentHashMap<>();
+        private static final int EMPTY = 0;      // port slot states; live slots hold port + 1
+        private static final int TOMBSTONE = -1;
+        private static final int INITIAL_CAPACITY = 1024; // power of two
+
+        private final StampedLock lock = new StampedLock();
         private final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor();
         private final long timeoutMillis;
+        private final AtomicInteger nextDiscriminator = new AtomicInteger();
+        private Table table = new Table(INITIAL_CAPACITY); // guarded by lock
+
+        private static final class Table {
+            final long[] addrHi;
+            final long[] addrLo;
+            final int[] port;
+            final Session[] values;
+            final int mask;
+            int size;
+            int used; // live slots + tombstones
+
+            Table(int capacity) {
+                addrHi = new long[capacity];
+                addrLo = new long[capacity];
+                port = new int[capacity];
+                values = new Session[capacity];
+                mask = capacity - 1;
+            }
+
+            int find(long hi, long lo, int portKey) {
+                int idx = hash(hi, lo, portKey) & mask;
+                for (int probes = 0; probes <= mask; probes++) {
+                    int state = port[idx];
+                    if (state == EMPTY) return -1;
+                    if (state == portKey && addrHi[idx] == hi && addrLo[idx] == lo) return idx;
+                    idx = (idx + 1) & mask;
+                }
+                return -1;
+            }
+
+            void insert(long hi, long lo, int portKey, Session session) {
+                int idx = hash(hi, lo, portKey) & mask;
+                while (port[idx] > 0) idx = (idx + 1) & mask; // reuse the first empty or tombstone slot
+                if (port[idx] == EMPTY) used++;
+                addrHi[idx] = hi;
+                addrLo[idx] = lo;
+                values[idx] = session;
+                port[idx] = portKey;
+                size++;
+            }
+
+            void removeAt(int idx) {
+                values[idx] = null;
+                port[idx] = TOMBSTONE;
+                size--;
+            }
+        }
 
         public SessionManager(long timeoutMillis) {
             this.timeoutMillis = timeoutMillis;
             reaper.scheduleAtFixedRate(this::reap, timeoutMillis, timeoutMillis, TimeUnit.MILLISECONDS);
         }
 
-        public Session getOrCreate(String username, InetSocketAddress addr) {
-            return sessions.compute(addr, (key, existing) -> {
-                if (existing != null) {
-                    existing.lastTransmissionTime = System.currentTimeMillis();
-                    return existing;
+        private static int hash(long hi, long lo, int portKey) {
+            long h = (hi * 0x9E3779B97F4A7C15L) ^ lo ^ ((long) portKey << 32);
+            h *= 0xC2B2AE3D27D4EB4FL;
+            return (int) (h ^ (h >>> 29));
+        }
+
+        // IPv4 addresses are packed as IPv4-mapped IPv6 (::ffff:a.b.c.d) so that both families share a layout
+        private static long packHi(byte[] raw) {
+            if (raw.length == 4) return 0L;
+            long v = 0;
+            for (int i = 0; i < 8; i++) v = (v << 8) | (raw[i] & 0xFF);
+            return v;
+        }
+
+        private static long packLo(byte[] raw) {
+            long v = 0;
+            if (raw.length == 4) {
+                v = 0xFFFFL;
+                for (int i = 0; i < 4; i++) v = (v << 8) | (raw[i] & 0xFF);
+                return v;
+            }
+            for (int i = 8; i < 16; i++) v = (v << 8) | (raw[i] & 0xFF);
+            return v;
+        }
+
+        private Session lookup(long hi, long lo, int portKey) {
+            long stamp = lock.tryOptimisticRead();
+            Table t = table;
+            int idx = t.find(hi, lo, portKey);
+            Session found = idx == -1 ? null : t.values[idx];
+            if (lock.validate(stamp)) return found;
+
+            stamp = lock.readLock();
+            try {
+                t = table;
+                idx = t.find(hi, lo, portKey);
+                return idx == -1 ? null : t.values[idx];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /// returns the session for an endpoint, creating it if needed.
+        /// the default username (the endpoint string) is only built when a session is created.
+        public Session getOrCreate(InetSocketAddress addr) {
+            byte[] raw = addr.getAddress().getAddress();
+            long hi = packHi(raw), lo = packLo(raw);
+            int portKey = addr.getPort() + 1;
+
+            Session existing = lookup(hi, lo, portKey);
+            if (existing == null) {
+                long stamp = lock.writeLock();
+                try {
+                    int idx = table.find(hi, lo, portKey);
+                    if (idx != -1) {
+                        existing = table.values[idx];
+                    } else {
+                        if (table.used + 1 > (table.mask + 1) / 2) rehash();
+                        // never hand out 0; that discriminator marks hub-originated frames
+                        short discriminator = (short) (1 + Math.floorMod(nextDiscriminator.getAndIncrement(), 65535));
+                        Session created = new Session(addr.toString(), addr, discriminator);
+                        table.insert(hi, lo, portKey, created);
+                        return created;
+                    }
+                } finally {
+                    lock.unlockWrite(stamp);
                 }
-                return new Session(username, addr);
-            });
+            }
+            existing.heard(System.currentTimeMillis());
+            return existing;
+        }
+
+        /// grows the table when live entries fill it, otherwise just clears out tombstones. caller holds the write lock.
+        private void rehash() {
+            Table old = table;
+            int capacity = old.mask + 1;
+            Table grown = new Table(old.size + 1 > capacity / 4 ? capacity * 2 : capacity);
+            for (int i = 0; i <= old.mask; i++) {
+                if (old.port[i] > 0) grown.insert(old.addrHi[i], old.addrLo[i], old.port[i], old.values[i]);
+            }
+            table = grown;
         }
 
         public Session getByAddress(InetSocketAddress addr) {
-            return sessions.get(addr);
+            byte[] raw = addr.getAddress().getAddress();
+            return lookup(packHi(raw), packLo(raw), addr.getPort() + 1);
         }
 
         public Session getByUsername(String username) {
-            return sessions.values().stream()
-                           .filter(s -> s.username.equals(username))
-                           .findFirst().orElse(null);
+            byte[] wanted = username.getBytes(StandardCharsets.UTF_8);
+            for (Session s : this) {
+                if (Arrays.equals(s.usernameBytes(), wanted)) return s;
+            }
+            return null;
         }
-        
+
+        public int size() {
+            long stamp = lock.readLock();
+            try {
+                return table.size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
         @Override
         public Iterator<Session> iterator() {
-            return sessions.values().iterator();
+            long stamp = lock.readLock();
+            Session[] snapshot;
+            try {
+                snapshot = table.values; // later writes to this array may or may not be seen
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            return new Iterator<Session>() {
+                private int idx = 0;
+                private Session pending;
+
+                @Override
+                public boolean hasNext() {
+                    while (pending == null && idx < snapshot.length) pending = snapshot[idx++];
+                    return pending != null;
+                }
+
+                @Override
+                public Session next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    Session s = pending;
+                    pending = null;
+                    return s;
+                }
+            };
         }
 
-        public void touch(InetSocketAddress addr) {
-            Session s = sessions.get(addr);
-            if (s != null) s.lastTransmissionTime = System.currentTimeMillis();
+        /// refreshes a session's timestamp. returns false if there is no session for that address.
+        public boolean touch(InetSocketAddress addr) {
+            Session s = getByAddress(addr);
+            if (s == null) return false;
+            s.heard(System.currentTimeMillis());
+            return true;
         }
 
         private void reap() {
             long now = System.currentTimeMillis();
-            sessions.values().removeIf(s -> (now - s.lastTransmissionTime) > timeoutMillis);
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                for (int i = 0; i <= t.mask; i++) {
+                    Session s = t.values[i];
+                    if (s != null && (now - s.lastTransmissionTime) > timeoutMillis) {
+                        t.removeAt(i);
+                        if (s.fec != null) fecLinks.remove(s.socketAddr, s.fec);
+                        mailboxes.orphan(s);
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
         }
 
         public void shutdown() {
@@ -311,30 +2437,202 @@ public class M4TChatHub {
         }
     }
 
+    /// forward error correction for one session that asked for it with fec=<data>,<parity> in SALVE.
+    /// every `data` covered frames are followed by `parity` parity frames; parity j is the XOR of the group's
+    /// frames at positions j, j+parity, j+2*parity..., so one loss per stripe (and any burst of up to `parity`
+    /// consecutive losses) is rebuilt on arrival of the parity instead of after a NACK round trip.
+    /// a parity frame is |^~FEC <id>,<id>,... followed by the XOR of the covered lengths (2 bytes) and of the
+    /// covered frames; frames are matched by message id. the client's ForwardErrorCorrector is the other end.
+    public static final class Fec {
+        static final int MAX_GROUP = 16;
+        static final int OVERHEAD = 128; // parity prefix, id list and length field; longer frames go uncovered
+        static final long FLUSH_DELAY_MILLIS = 30; // an incomplete group is closed after this, so a lull leaves nothing exposed
+        static final int RECENT = 64; // received frames kept for rebuilding
+        static final byte[] PREFIX = "|^~FEC ".getBytes(StandardCharsets.US_ASCII);
+
+        final Session owner;
+        final int dataPerGroup;
+        final int parityPerGroup;
+
+        // encoder; guarded by this
+        private final byte[][] stripes;
+        private final int[] stripeLengths;
+        private final int[] lengthXors;
+        private final short[][] stripeIds;
+        private final int[] stripeCounts;
+        private int groupCount = 0;
+        private long generation = 0;
+
+        // decoder; guarded by recentIds
+        private final short[] recentIds = new short[RECENT];
+        private final byte[][] recentFrames = new byte[RECENT][];
+        private final boolean[] recentRebuilt = new boolean[RECENT];
+        private int recentNext = 0;
+
+        Fec(Session owner, int dataPerGroup, int parityPerGroup) {
+            this.owner = owner;
+            this.dataPerGroup = Math.min(dataPerGroup, MAX_GROUP);
+            this.parityPerGroup = Math.min(parityPerGroup, this.dataPerGroup);
+            stripes = new byte[this.parityPerGroup][MAX_BUFFER_SIZE];
+            stripeLengths = new int[this.parityPerGroup];
+            lengthXors = new int[this.parityPerGroup];
+            stripeIds = new short[this.parityPerGroup][(this.dataPerGroup + this.parityPerGroup - 1) / this.parityPerGroup];
+            stripeCounts = new int[this.parityPerGroup];
+        }
+
+        /// folds a frame just sent (from `start` to the buffer's limit) into the group; absolute reads, so the
+        /// caller's buffer is left alone. sends the group's parity once it is complete.
+        synchronized void cover(DatagramChannel chan, ByteBuffer frame, int start) throws IOException {
+            int length = frame.limit() - start;
+            if (length < HEADER_SIZE || length > owner.maxPayload - OVERHEAD) return;
+            int stripe = groupCount % parityPerGroup;
+            byte[] acc = stripes[stripe];
+            for (int i = 0; i < length; i++) acc[i] ^= frame.get(start + i);
+            stripeLengths[stripe] = Math.max(stripeLengths[stripe], length);
+            lengthXors[stripe] ^= length;
+            stripeIds[stripe][stripeCounts[stripe]++] = frame.getShort(start);
+            if (++groupCount == dataPerGroup) {
+                flush(chan);
+            } else if (groupCount == 1) {
+                long group = generation;
+                timers.schedule(() -> flushIfStill(chan, group), FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private synchronized void flushIfStill(DatagramChannel chan, long group) {
+            if (group != generation || groupCount == 0) return;
+            try {
+                flush(chan);
+            } catch (IOException ex) {
+                Logger.getLogger(M4TChatHub.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        private void flush(DatagramChannel chan) throws IOException {
+            for (int s = 0; s < parityPerGroup; s++) {
+                if (stripeCounts[s] == 0) continue;
+                StringBuilder ids = new StringBuilder();
+                for (int i = 0; i < stripeCounts[s]; i++) ids.append(i == 0 ? "" : ",").append(stripeIds[s][i]);
+                byte[] idBytes = ids.append(' ').toString().getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer parity = ByteBuffer.allocate(HEADER_SIZE + PREFIX.length + idBytes.length + 2 + stripeLengths[s]);
+                parity.putShort((short) ThreadLocalRandom.current().nextInt(0, 65536)).putShort((short) 0)
+                        .put(PREFIX).put(idBytes).putShort((short) lengthXors[s]).put(stripes[s], 0, stripeLengths[s]).flip();
+                chan.send(parity, owner.socketAddr); // straight to UDP; parity is never itself covered
+
+                Arrays.fill(stripes[s], 0, stripeLengths[s], (byte) 0);
+                stripeLengths[s] = 0;
+                lengthXors[s] = 0;
+                stripeCounts[s] = 0;
+            }
+            groupCount = 0;
+            generation++;
+        }
+
+        /// keeps a received frame for rebuilding. returns false if it is the late original of a frame
+        /// that was already rebuilt (and handled), so it must not be handled again.
+        boolean remember(byte[] frame, int length) {
+            if (length < HEADER_SIZE) return true;
+            short id = (short) (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF));
+            synchronized (recentIds) {
+                for (int i = 0; i < RECENT; i++) {
+                    if (recentRebuilt[i] && recentIds[i] == id
+                            && Arrays.equals(recentFrames[i], 0, recentFrames[i].length, frame, 0, length)) {
+                        recentRebuilt[i] = false; // one late original per rebuild
+                        return false;
+                    }
+                }
+                store(id, Arrays.copyOf(frame, length), false);
+                return true;
+            }
+        }
+
+        private void store(short id, byte[] frame, boolean rebuilt) {
+            recentIds[recentNext] = id;
+            recentFrames[recentNext] = frame;
+            recentRebuilt[recentNext] = rebuilt;
+            recentNext = (recentNext + 1) % RECENT;
+        }
+
+        private byte[] find(short id) {
+            for (int back = 1; back <= RECENT; back++) {
+                int i = Math.floorMod(recentNext - back, RECENT);
+                if (recentFrames[i] != null && recentIds[i] == id) return recentFrames[i];
+            }
+            return null;
+        }
+
+        /// rebuilds the one frame of a parity's stripe that did not arrive.
+        /// returns null if nothing, or more than XOR can repair, is missing.
+        byte[] recover(byte[] parity, int length) {
+            int start = HEADER_SIZE + PREFIX.length;
+            int space = start;
+            while (space < length && parity[space] != ' ') space++;
+            if (space + 3 > length) return null;
+            String[] idParts = new String(parity, start, space - start, StandardCharsets.US_ASCII).split(",");
+            int dataStart = space + 3;
+            int dataLength = length - dataStart;
+            synchronized (recentIds) {
+                short missingId = 0;
+                int missing = 0;
+                int rebuiltLength = ((parity[space + 1] & 0xFF) << 8) | (parity[space + 2] & 0xFF);
+                byte[] rebuilt = Arrays.copyOfRange(parity, dataStart, length);
+                for (String part : idParts) {
+                    short id;
+                    try {
+                        id = Short.parseShort(part);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    byte[] present = find(id);
+                    if (present == null) {
+                        missingId = id;
+                        if (++missing > 1) return null;
+                        continue;
+                    }
+                    rebuiltLength ^= present.length;
+                    for (int i = 0; i < Math.min(present.length, dataLength); i++) rebuilt[i] ^= present[i];
+                }
+                if (missing == 0 || rebuiltLength < HEADER_SIZE || rebuiltLength > dataLength
+                        || (short) (((rebuilt[0] & 0xFF) << 8) | (rebuilt[1] & 0xFF)) != missingId) {
+                    return null; // nothing lost, or a colliding id poisoned the XOR
+                }
+                byte[] frame = Arrays.copyOf(rebuilt, rebuiltLength);
+                store(missingId, frame, true);
+                return frame;
+            }
+        }
+    }
+
+    /// same wire layout as the client's Payload: message id, session discriminator, UTF-8 content.
     public static class Payload {
         private final short messageId;
+        private final short sessionDiscriminator;
         private final String content;
 
-        public Payload(short messageId, String content) {
+        public Payload(short messageId, short sessionDiscriminator, String content) {
             this.messageId = messageId;
+            this.sessionDiscriminator = sessionDiscriminator;
             this.content = content;
         }
 
         public short getMessageId() { return messageId; }
+        public short getSessionDiscriminator() { return sessionDiscriminator; }
         public String getContent() { return content; }
 
         public static Payload fromBytes(byte[] data, int length) {
             ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
             short messageId = buffer.getShort();
-            byte[] contentBytes = new byte[length - 2];
+            short sessionDiscriminator = buffer.getShort();
+            byte[] contentBytes = new byte[length - 4];
             buffer.get(contentBytes);
-            return new Payload(messageId, new String(contentBytes, StandardCharsets.UTF_8));
+            return new Payload(messageId, sessionDiscriminator, new String(contentBytes, StandardCharsets.UTF_8));
         }
 
         public byte[] toBytes() {
             byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
-            ByteBuffer buffer = ByteBuffer.allocate(2 + contentBytes.length);
+            ByteBuffer buffer = ByteBuffer.allocate(4 + contentBytes.length);
             buffer.putShort(messageId);
+            buffer.putShort(sessionDiscriminator);
             buffer.put(contentBytes);
             return buffer.array();
         }
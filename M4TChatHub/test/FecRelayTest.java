@@ -0,0 +1,114 @@
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/// end-to-end check of hub-side forward error correction: a client that negotiated fec=2,1 sends two chat frames,
+/// the second is "lost", and the parity must rebuild it so that the room sees it exactly once, before the late
+/// original shows up, and not again after.
+///
+/// from the repository root:
+///     javac -d /tmp/hubtest M4TChatHub/M4TChatHub.java M4TChatHub/test/FecRelayTest.java
+///     java -cp /tmp/hubtest FecRelayTest
+/// exits with status 1 on failure.
+public class FecRelayTest {
+    static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0, LOOPBACK)) {
+            port = probe.getLocalPort();
+        }
+        Thread hub = new Thread(() -> {
+            try {
+                M4TChatHub.main(new String[] {"--port=" + port, "--ip-lookup="});
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "Hub");
+        hub.setDaemon(true);
+        hub.start();
+        Thread.sleep(500);
+
+        InetSocketAddress hubAddr = new InetSocketAddress(LOOPBACK, port);
+        try (DatagramSocket sender = new DatagramSocket(0, LOOPBACK);
+             DatagramSocket listener = new DatagramSocket(0, LOOPBACK)) {
+            sender.setSoTimeout(200);
+            listener.setSoTimeout(200);
+            send(listener, hubAddr, frame(1, "|^~SALVE listener"));
+            send(sender, hubAddr, frame(2, "|^~SALVE sender fec=2,1"));
+            drain(sender);
+            drain(listener);
+
+            byte[] first = frame(100, "first covered message");
+            byte[] lost = frame(101, "second covered message");
+            send(sender, hubAddr, first);
+            send(sender, hubAddr, parity(first, lost)); // `lost` never went out
+            int rebuilt = countChat(listener, "second covered message");
+
+            send(sender, hubAddr, lost); // the late original
+            int late = countChat(listener, "second covered message");
+
+            System.out.println("rebuilt relayed " + rebuilt + " time(s), late original relayed " + late + " time(s)");
+            if (rebuilt != 1 || late != 0) {
+                System.out.println("FAIL");
+                System.exit(1);
+            }
+            System.out.println("OK");
+            System.exit(0);
+        }
+    }
+
+    static byte[] frame(int messageId, String content) {
+        byte[] text = content.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + text.length).putShort((short) messageId).putShort((short) 0).put(text).array();
+    }
+
+    /// the hub's Fec.recover layout: |^~FEC <ids> , XOR of the covered lengths (2 bytes), XOR of the covered frames.
+    static byte[] parity(byte[] a, byte[] b) {
+        byte[] xor = new byte[Math.max(a.length, b.length)];
+        for (int i = 0; i < a.length; i++) xor[i] ^= a[i];
+        for (int i = 0; i < b.length; i++) xor[i] ^= b[i];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] prefix = ("|^~FEC " + idOf(a) + "," + idOf(b) + " ").getBytes(StandardCharsets.US_ASCII);
+        out.write(new byte[] {0x7f, 0x7f, 0, 0}, 0, 4);
+        out.write(prefix, 0, prefix.length);
+        int lengths = a.length ^ b.length;
+        out.write(lengths >> 8);
+        out.write(lengths);
+        out.write(xor, 0, xor.length);
+        return out.toByteArray();
+    }
+
+    static short idOf(byte[] frame) {
+        return (short) (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF));
+    }
+
+    static void send(DatagramSocket socket, InetSocketAddress to, byte[] frame) throws Exception {
+        socket.send(new DatagramPacket(frame, frame.length, to));
+    }
+
+    static void drain(DatagramSocket socket) throws Exception {
+        countChat(socket, null);
+    }
+
+    /// counts the datagrams that carry `text` until the socket stays quiet for its timeout.
+    static int countChat(DatagramSocket socket, String text) throws Exception {
+        byte[] buf = new byte[2048];
+        int seen = 0;
+        while (true) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException quiet) {
+                return seen;
+            }
+            String content = new String(buf, 4, packet.getLength() - 4, StandardCharsets.UTF_8);
+            if (text != null && content.contains(text)) seen++;
+        }
+    }
+}
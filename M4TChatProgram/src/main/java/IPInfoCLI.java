@@ -1,35 +1,91 @@
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple command-line utility that prints the local and public IP addresses
  * of the machine it runs on.
  *
+ * <p>Interface enumeration and every public address lookup run concurrently,
+ * each bounded by {@code --timeout}, so an offline machine answers promptly.
+ * Public addresses are cached per lookup endpoint in {@code --cache} for
+ * {@code --cache-ttl} seconds; the file format is shared with M4TChatHub.
+ *
  * <p>Note: This class is intended to be compiled and jarred manually.
  */
 @Command(
         name = "ipinfo",
         mixinStandardHelpOptions = true,
-        version = "ipinfo 1.0",
+        version = "ipinfo 1.1",
         description = "Prints the local and public IP addresses of this machine."
 )
 public class IPInfoCLI implements Callable<Integer> {
 
+    @Option(names = "--endpoint", description = "Public address lookup URL; repeatable (default: api.ipify.org and api6.ipify.org).")
+    List<String> endpoints = new ArrayList<>(List.of("https://api.ipify.org", "https://api6.ipify.org"));
+
+    @Option(names = "--timeout", description = "Milliseconds to wait for each lookup (default: ${DEFAULT-VALUE}).")
+    int timeoutMillis = 2000;
+
+    @Option(names = "--cache", description = "Public address cache file (default: ~/.m4t-ipcache).")
+    Path cacheFile = Paths.get(System.getProperty("user.home"), ".m4t-ipcache");
+
+    @Option(names = "--cache-ttl", description = "Seconds a cached public address stays valid; 0 always looks up (default: ${DEFAULT-VALUE}).")
+    long cacheTtlSeconds = 3600;
+
+    private final ExecutorService lookups = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "AddressDiscovery");
+        t.setDaemon(true);
+        return t;
+    });
+
     @Override
     public Integer call() {
-        printLocalAddresses();
-        printPublicAddresses();
+        Properties cache = loadCache();
+        CompletableFuture<String> local = CompletableFuture.supplyAsync(this::localAddresses, lookups)
+                .completeOnTimeout(" - Could not enumerate interfaces in time\n", timeoutMillis, TimeUnit.MILLISECONDS);
+        List<CompletableFuture<String>> publics = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            publics.add(CompletableFuture.supplyAsync(() -> publicAddress(endpoint, cache), lookups)
+                    // a hard bound: connect and read timeouts do not cover DNS resolution
+                    .completeOnTimeout(" - Public address via " + endpoint + ": Could not determine (timed out)\n",
+                            timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        System.out.println("Your Local IP addresses:");
+        System.out.print(local.join());
+        if (!publics.isEmpty()) {
+            System.out.println("\nYour Public IP addresses:");
+            for (CompletableFuture<String> lookup : publics) {
+                System.out.print(lookup.join());
+            }
+        }
+        saveCache(cache);
         return 0;
     }
 
-    private void printLocalAddresses() {
-        System.out.println("Your Local IP addresses:");
+    private String localAddresses() {
+        StringBuilder out = new StringBuilder();
         try {
             Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
             while (interfaces.hasMoreElements()) {
@@ -39,27 +95,72 @@ public class IPInfoCLI implements Callable<Integer> {
                 Enumeration<InetAddress> addresses = ni.getInetAddresses();
                 while (addresses.hasMoreElements()) {
                     InetAddress addr = addresses.nextElement();
-                    System.out.println(" - " + addr.getHostAddress() + " (" +
-                            (addr instanceof Inet4Address ? "IPv4" : "IPv6") + ")");
+                    out.append(" - ").append(addr.getHostAddress()).append(" (")
+                            .append(addr instanceof Inet4Address ? "IPv4" : "IPv6").append(")\n");
                 }
             }
         } catch (SocketException e) {
             System.err.println("Failed to enumerate local interfaces: " + e.getMessage());
         }
+        return out.toString();
+    }
+
+    private String publicAddress(String endpoint, Properties cache) {
+        String cached = cache.getProperty(endpoint);
+        if (cached != null) {
+            int space = cached.indexOf(' ');
+            try {
+                long age = System.currentTimeMillis() - Long.parseLong(cached.substring(0, space));
+                if (age < TimeUnit.SECONDS.toMillis(cacheTtlSeconds)) {
+                    return describe(cached.substring(space + 1), endpoint, " (cached)");
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ignored) {
+            }
+        }
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(endpoint).openConnection();
+            conn.setConnectTimeout(timeoutMillis);
+            conn.setReadTimeout(timeoutMillis);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                String publicIP = in.readLine();
+                if (publicIP == null || publicIP.isBlank()) {
+                    return " - Public address via " + endpoint + ": Could not determine (empty answer)\n";
+                }
+                publicIP = publicIP.trim();
+                synchronized (cache) {
+                    cache.setProperty(endpoint, System.currentTimeMillis() + " " + publicIP);
+                }
+                return describe(publicIP, endpoint, "");
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException | RuntimeException e) {
+            return " - Public address via " + endpoint + ": Could not determine (" + e.getMessage() + ")\n";
+        }
+    }
+
+    private static String describe(String address, String endpoint, String note) {
+        return " - Public " + (address.indexOf(':') == -1 ? "IPv4" : "IPv6") + ": " + address
+                + " (via " + endpoint + ")" + note + "\n";
     }
 
-    private void printPublicAddresses() {
-        System.out.println("\nYour Public IP addresses as seen by ipify.org:");
-        printPublicIP("https://api.ipify.org", "IPv4");
-        printPublicIP("https://api6.ipify.org", "IPv6");
+    private Properties loadCache() {
+        Properties cache = new Properties();
+        try (Reader in = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            cache.load(in);
+        } catch (IOException ignored) {
+            // no cache yet, or unreadable; every endpoint is looked up
+        }
+        return cache;
     }
 
-    private void printPublicIP(String url, String type) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(new URL(url).openStream()))) {
-            String publicIP = in.readLine();
-            System.out.println(" - Public " + type + ": " + publicIP);
-        } catch (Exception e) {
-            System.out.println(" - Public " + type + ": Could not determine (" + e.getMessage() + ")");
+    private void saveCache(Properties cache) {
+        synchronized (cache) {
+            try (Writer out = Files.newBufferedWriter(cacheFile, StandardCharsets.UTF_8)) {
+                cache.store(out, "M4T public address cache: <epoch millis> <address> per lookup endpoint");
+            } catch (IOException e) {
+                System.err.println("Could not write the address cache: " + e.getMessage());
+            }
         }
     }
 
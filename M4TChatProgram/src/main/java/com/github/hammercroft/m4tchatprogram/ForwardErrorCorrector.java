@@ -0,0 +1,299 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds parity datagrams to our traffic and rebuilds lost datagrams from the
+ * peer's parity, so that a lossy link costs no round trip.
+ * <p>
+ * With {@code --fec=K,M}, every group of {@code K} covered frames is followed
+ * by {@code M} parity frames. Parity {@code j} is the XOR of the group's frames
+ * at positions {@code j}, {@code j+M}, {@code j+2M}..., so one loss per stripe,
+ * and any burst of up to {@code M} consecutive losses, is rebuilt as soon as the
+ * parity arrives. A parity frame reads
+ * {@code |^~FEC <id>,<id>,... } followed by the XOR of the covered frames'
+ * lengths (two bytes) and the XOR of the frames themselves; covered frames are
+ * matched by message ID. A group that stays incomplete is closed after
+ * {@link #FLUSH_DELAY_MS}, so a lull leaves nothing unprotected.
+ * </p>
+ * <p>
+ * Both sides advertise {@code fec=K,M} in SALVE and E2SALVE; parity is only
+ * sent to a peer that advertised it. Rebuilt frames go through the same path as
+ * received ones, before deduplication, so a late original is dropped there.
+ * The hub's {@code Fec} class speaks the same format.
+ * </p>
+ */
+public class ForwardErrorCorrector {
+
+    /** Largest number of data frames per group. */
+    public static final int MAX_GROUP = 16;
+
+    /** Room a parity frame needs beyond the frames it covers; longer frames go uncovered. */
+    public static final int OVERHEAD = 128;
+
+    /** How long an incomplete group waits for more frames before its parity is sent. */
+    public static final long FLUSH_DELAY_MS = 30;
+
+    /** How many received frames are kept for rebuilding. */
+    public static final int RECENT_FRAMES = 64;
+
+    private static final byte[] PREFIX = (S_FEC.token() + " ").getBytes(StandardCharsets.US_ASCII);
+
+    private final M4TChatProgram chatProgram;
+
+    // the encoder; guarded by this
+    private boolean encoding = false;
+    private int dataFrames;
+    private int parityFrames;
+    private byte[][] stripes;
+    private int[] stripeLengths;
+    private int[] lengthXors;
+    private short[][] stripeIds;
+    private int[] stripeCounts;
+    private int groupCount = 0;
+    private long generation = 0;
+
+    // the decoder; guarded by recentIds
+    private final short[] recentIds = new short[RECENT_FRAMES];
+    private final byte[][] recentFrames = new byte[RECENT_FRAMES][];
+    private int recentNext = 0;
+
+    /**
+     * Creates a forward error corrector for the given chat program.
+     *
+     * @param chatProgram the chat program whose traffic is protected
+     */
+    public ForwardErrorCorrector(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Returns the {@code fec=K,M} field to advertise in SALVE and E2SALVE.
+     *
+     * @return the field with a leading space, or an empty string if FEC is off
+     */
+    public String advertisement() {
+        ProgramState state = chatProgram.state;
+        if (state.getFecDataFrames() <= 0) {
+            return "";
+        }
+        return " fec=" + state.getFecDataFrames() + "," + state.getFecParityFrames();
+    }
+
+    /**
+     * Starts adding parity for the current target if it advertised FEC and we
+     * have it enabled. Groups in progress are dropped.
+     *
+     * @param advertised whether the peer's SALVE or E2SALVE carried {@code fec=}
+     */
+    public synchronized void peerAdvertised(boolean advertised) {
+        ProgramState state = chatProgram.state;
+        int k = Math.min(state.getFecDataFrames(), MAX_GROUP);
+        int m = Math.max(1, Math.min(state.getFecParityFrames(), k));
+        encoding = advertised && k > 0;
+        generation++;
+        groupCount = 0;
+        if (!encoding) {
+            stripes = null;
+            return;
+        }
+        dataFrames = k;
+        parityFrames = m;
+        stripes = new byte[m][M4TChatProgram.MAX_BUFFER_SIZE];
+        stripeLengths = new int[m];
+        lengthXors = new int[m];
+        stripeIds = new short[m][(k + m - 1) / m];
+        stripeCounts = new int[m];
+    }
+
+    /**
+     * Stops adding parity, e.g. when switching to another hub or peer.
+     */
+    public void reset() {
+        peerAdvertised(false);
+    }
+
+    /**
+     * Folds a frame just sent to the current target into the group, sending
+     * the group's parity once it is complete.
+     *
+     * @param frame the complete frame, header included
+     * @throws IOException if parity cannot be sent
+     */
+    public synchronized void cover(byte[] frame) throws IOException {
+        if (!encoding || frame.length < 4 || frame.length > chatProgram.state.getSendLimit() - OVERHEAD) {
+            return;
+        }
+        int stripe = groupCount % parityFrames;
+        byte[] acc = stripes[stripe];
+        for (int i = 0; i < frame.length; i++) {
+            acc[i] ^= frame[i];
+        }
+        stripeLengths[stripe] = Math.max(stripeLengths[stripe], frame.length);
+        lengthXors[stripe] ^= frame.length;
+        stripeIds[stripe][stripeCounts[stripe]++] = (short) (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF));
+        if (++groupCount == dataFrames) {
+            flush();
+        } else if (groupCount == 1) {
+            long group = generation;
+            CompletableFuture.delayedExecutor(FLUSH_DELAY_MS, TimeUnit.MILLISECONDS).execute(() -> flushIfStill(group));
+        }
+    }
+
+    /**
+     * Records a frame received from the current target, or rebuilds and
+     * processes whatever a parity frame recovers.
+     *
+     * A kept frame is held as it is, not copied, so the caller must not
+     * change it afterwards.
+     *
+     * @param frame the received datagram, at least 4 bytes
+     * @return {@code true} if the frame was parity and is consumed
+     * @throws IOException if processing a rebuilt frame fails
+     */
+    public boolean intercept(byte[] frame) throws IOException {
+        boolean enabled = chatProgram.state.getFecDataFrames() > 0;
+        if (!isParity(frame)) {
+            if (enabled) {
+                remember(frame);
+            }
+            return false;
+        }
+        byte[] rebuilt = enabled ? recover(frame, frame.length) : null;
+        if (rebuilt != null) {
+            chatProgram.processRebuilt(rebuilt);
+        }
+        return true;
+    }
+
+    private synchronized void flushIfStill(long group) {
+        if (group == generation && groupCount > 0) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        InetAddress address = chatProgram.state.getTheirAddress();
+        int port = chatProgram.state.getTheirPort();
+        for (int s = 0; s < parityFrames; s++) {
+            if (stripeCounts[s] == 0) {
+                continue;
+            }
+            StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < stripeCounts[s]; i++) {
+                ids.append(i == 0 ? "" : ",").append(stripeIds[s][i]);
+            }
+            byte[] idBytes = ids.append(' ').toString().getBytes(StandardCharsets.US_ASCII);
+            byte[] parity = new byte[4 + PREFIX.length + idBytes.length + 2 + stripeLengths[s]];
+            int id = ThreadLocalRandom.current().nextInt(0, 65536);
+            short discriminator = chatProgram.state.getSessionDiscriminator();
+            parity[0] = (byte) (id >> 8);
+            parity[1] = (byte) id;
+            parity[2] = (byte) (discriminator >> 8);
+            parity[3] = (byte) discriminator;
+            int at = 4;
+            System.arraycopy(PREFIX, 0, parity, at, PREFIX.length);
+            at += PREFIX.length;
+            System.arraycopy(idBytes, 0, parity, at, idBytes.length);
+            at += idBytes.length;
+            parity[at++] = (byte) (lengthXors[s] >> 8);
+            parity[at++] = (byte) lengthXors[s];
+            System.arraycopy(stripes[s], 0, parity, at, stripeLengths[s]);
+            chatProgram.state.getOurSocket().send(new DatagramPacket(parity, parity.length, address, port));
+
+            Arrays.fill(stripes[s], 0, stripeLengths[s], (byte) 0);
+            stripeLengths[s] = 0;
+            lengthXors[s] = 0;
+            stripeCounts[s] = 0;
+        }
+        groupCount = 0;
+        generation++;
+    }
+
+    private static boolean isParity(byte[] frame) {
+        return frame.length >= 4 + PREFIX.length && Arrays.equals(frame, 4, 4 + PREFIX.length, PREFIX, 0, PREFIX.length);
+    }
+
+    private void remember(byte[] frame) {
+        synchronized (recentIds) {
+            recentIds[recentNext] = (short) (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF));
+            recentFrames[recentNext] = frame;
+            recentNext = (recentNext + 1) % RECENT_FRAMES;
+        }
+    }
+
+    private byte[] find(short id) {
+        for (int back = 1; back <= RECENT_FRAMES; back++) {
+            int i = Math.floorMod(recentNext - back, RECENT_FRAMES);
+            if (recentFrames[i] != null && recentIds[i] == id) {
+                return recentFrames[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuilds the one frame of a stripe that did not arrive.
+     *
+     * @return the rebuilt frame, or {@code null} if nothing or too much is missing
+     */
+    private byte[] recover(byte[] parity, int length) {
+        int start = 4 + PREFIX.length;
+        int space = start;
+        while (space < length && parity[space] != ' ') {
+            space++;
+        }
+        if (space + 3 > length) {
+            return null;
+        }
+        String[] idParts = new String(parity, start, space - start, StandardCharsets.US_ASCII).split(",");
+        int dataStart = space + 3;
+        int dataLength = length - dataStart;
+        synchronized (recentIds) {
+            short missingId = 0;
+            int missing = 0;
+            int rebuiltLength = ((parity[space + 1] & 0xFF) << 8) | (parity[space + 2] & 0xFF);
+            byte[] rebuilt = Arrays.copyOfRange(parity, dataStart, length);
+            for (String part : idParts) {
+                short id;
+                try {
+                    id = Short.parseShort(part);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                byte[] present = find(id);
+                if (present == null) {
+                    missingId = id;
+                    if (++missing > 1) {
+                        return null; // XOR parity repairs one loss per stripe
+                    }
+                    continue;
+                }
+                rebuiltLength ^= present.length;
+                for (int i = 0; i < Math.min(present.length, dataLength); i++) {
+                    rebuilt[i] ^= present[i];
+                }
+            }
+            if (missing == 0 || rebuiltLength < 4 || rebuiltLength > dataLength
+                    || (short) (((rebuilt[0] & 0xFF) << 8) | (rebuilt[1] & 0xFF)) != missingId) {
+                return null; // nothing lost, or a colliding ID poisoned the XOR
+            }
+            byte[] frame = Arrays.copyOf(rebuilt, rebuiltLength);
+            remember(frame);
+            return frame;
+        }
+    }
+}
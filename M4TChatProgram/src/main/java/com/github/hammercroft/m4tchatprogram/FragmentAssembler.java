@@ -0,0 +1,162 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Splits messages that do not fit one datagram into numbered fragments, and
+ * joins received fragments back into whole messages.
+ * <p>
+ * A fragment reads {@code |^~FRAG <key> <index> <count> <text>}. The key is
+ * chosen by the sender and shared by all fragments of one message; fragments
+ * are cut on UTF-8 character boundaries, so each one is valid text on its own.
+ * Hubs relay fragments one by one and never join them. At most
+ * {@link #MAX_PENDING} messages are assembled at a time, and one that is still
+ * incomplete after {@link #TIMEOUT_MS} is dropped.
+ * </p>
+ */
+public class FragmentAssembler {
+
+    /** Largest number of fragments a message may be split into. */
+    public static final int MAX_FRAGMENTS = 128;
+
+    /** Messages assembled at the same time; the oldest is dropped beyond this. */
+    public static final int MAX_PENDING = 16;
+
+    /** How long the fragments of one message are waited for. */
+    public static final long TIMEOUT_MS = 10_000;
+
+    /**
+     * Room a hub may add to each message it relays: its sequence prefix and
+     * the sender's name, which on a fragmented message only the first fragment
+     * carries. Chat to a hub is fragmented so that this much stays free of
+     * the negotiated send limit; the hub fragments its broadcast again for
+     * any recipient whose own limit is smaller.
+     */
+    public static final int HUB_HEADROOM = 96;
+
+    /** Upper bound of the fragment header, {@code |^~FRAG <key> <index> <count> }. */
+    private static final int HEADER_ROOM = 32;
+
+    // guarded by this; insertion order is arrival order, so the eldest entry expires first
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    private static final class Pending {
+        final long startNanos = System.nanoTime();
+        final byte[][] parts;
+        final short messageId;
+        final short sessionDiscriminator;
+        int received = 0;
+
+        Pending(int count, Payload first) {
+            parts = new byte[count][];
+            messageId = first.getMessageId();
+            sessionDiscriminator = first.getSessionDiscriminator();
+        }
+    }
+
+    /**
+     * Splits a message into fragment contents that each fit a datagram of the
+     * given size, header included.
+     *
+     * @param message the UTF-8 encoded message
+     * @param datagramSize the largest datagram a fragment may occupy
+     * @return the contents of the fragments, in order; empty if the message
+     *         needs more than {@link #MAX_FRAGMENTS}, since receivers reject
+     *         such a message and a cut-short one must not reach anyone
+     */
+    public static List<String> split(byte[] message, int datagramSize) {
+        int chunk = Math.max(16, datagramSize - 4 - HEADER_ROOM);
+        List<byte[]> pieces = new ArrayList<>();
+        int from = 0;
+        while (from < message.length && pieces.size() < MAX_FRAGMENTS) {
+            int to = Math.min(from + chunk, message.length);
+            while (to < message.length && to > from + 1 && (message[to] & 0xC0) == 0x80) {
+                to--; // never cut a character in half
+            }
+            byte[] piece = new byte[to - from];
+            System.arraycopy(message, from, piece, 0, piece.length);
+            pieces.add(piece);
+            from = to;
+        }
+        if (from < message.length) {
+            return List.of();
+        }
+        String key = Integer.toHexString(ThreadLocalRandom.current().nextInt());
+        List<String> fragments = new ArrayList<>(pieces.size());
+        for (int i = 0; i < pieces.size(); i++) {
+            fragments.add(S_FRAG.token() + " " + key + " " + i + " " + pieces.size() + " "
+                    + new String(pieces.get(i), StandardCharsets.UTF_8));
+        }
+        return fragments;
+    }
+
+    /**
+     * Records a received fragment.
+     *
+     * @param fragment a payload whose content starts with {@code |^~FRAG}
+     * @return the whole message once its last fragment arrived, carrying the
+     *         first-received fragment's message ID; otherwise {@code null}
+     */
+    public synchronized Payload accept(Payload fragment) {
+        // the header is read from the bytes; fields are separated by single spaces
+        int keyFrom = S_FRAG.length() + 1;
+        int keyTo = fragment.fieldEnd(keyFrom);
+        int indexTo = fragment.fieldEnd(keyTo + 1);
+        int countTo = fragment.fieldEnd(indexTo + 1);
+        if (countTo >= fragment.contentLength()) {
+            return null;
+        }
+        long index = fragment.parseNumber(keyTo + 1, indexTo);
+        long count = fragment.parseNumber(indexTo + 1, countTo);
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            return null;
+        }
+        expire();
+        String key = fragment.text(keyFrom, keyTo);
+        Pending message = pending.get(key);
+        if (message == null) {
+            if (pending.size() >= MAX_PENDING) {
+                Iterator<String> eldest = pending.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+            message = new Pending((int) count, fragment);
+            pending.put(key, message);
+        }
+        if (message.parts.length != count || message.parts[(int) index] != null) {
+            return null; // a duplicate, or a key collision
+        }
+        message.parts[(int) index] = fragment.copyBytes(countTo + 1, fragment.contentLength());
+        if (++message.received < count) {
+            return null;
+        }
+        pending.remove(key);
+        int length = 0;
+        for (byte[] part : message.parts) {
+            length += part.length;
+        }
+        byte[] whole = new byte[length];
+        int at = 0;
+        for (byte[] part : message.parts) {
+            System.arraycopy(part, 0, whole, at, part.length);
+            at += part.length;
+        }
+        return new Payload(message.messageId, message.sessionDiscriminator, whole, 0, whole.length, -1);
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        Iterator<Pending> it = pending.values().iterator();
+        while (it.hasNext() && now - it.next().startNanos > TIMEOUT_MS * 1_000_000) {
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+
+/**
+ * Opens a direct UDP path to a peer that a hub introduced us to.
+ * <p>
+ * Both introduced peers send {@code |^~PUNCH <nonce>} to each other's observed
+ * endpoint until one gets through. The first side to receive a punch answers
+ * it once, so the other side completes too, reports {@code |^~PUNCHOK} to the
+ * hub and retargets itself to the peer. If nothing arrives within
+ * {@link #PUNCH_TIMEOUT_MS}, {@code |^~PUNCHFAIL} asks the hub to relay
+ * instead.
+ * </p>
+ */
+public class HolePuncher {
+
+    /** Delay between punches. */
+    public static final long PUNCH_INTERVAL_MS = 200;
+
+    /** How long to punch before giving up and asking the hub to relay. */
+    public static final long PUNCH_TIMEOUT_MS = 5_000;
+
+    private final M4TChatProgram chatProgram;
+
+    // the attempt in progress; guarded by this
+    private String nonce;
+    private InetAddress peerAddress;
+    private int peerPort;
+    private String peerName;
+
+    /**
+     * Creates a hole puncher for the given chat program.
+     *
+     * @param chatProgram the chat program whose socket is used for punching
+     */
+    public HolePuncher(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Starts punching towards an introduced peer, replacing any attempt in progress.
+     *
+     * @param nonce the introduction nonce chosen by the hub
+     * @param address the peer's observed address
+     * @param port the peer's observed port
+     * @param name the peer's username on the hub
+     */
+    public synchronized void start(String nonce, InetAddress address, int port, String name) {
+        this.nonce = nonce;
+        this.peerAddress = address;
+        this.peerPort = port;
+        this.peerName = name;
+
+        Thread punchThread = new Thread(() -> {
+            long deadline = System.nanoTime() + PUNCH_TIMEOUT_MS * 1_000_000;
+            while (System.nanoTime() < deadline && isAttempting(nonce)) {
+                try {
+                    chatProgram.sendMessageTo(S_PUNCH.token() + " " + nonce, address, port);
+                    Thread.sleep(PUNCH_INTERVAL_MS);
+                } catch (IOException ex) {
+                    System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            fail(nonce);
+        }, "HolePunchThread");
+        punchThread.setDaemon(true);
+        punchThread.start();
+    }
+
+    /**
+     * Handles a punch from a peer. Punches that do not carry the nonce of the
+     * attempt in progress are ignored.
+     *
+     * @param receivedNonce the nonce carried by the punch
+     * @throws IOException if the punch reply or the hub report cannot be sent
+     */
+    public synchronized void punchReceived(String receivedNonce) throws IOException {
+        if (!isAttempting(receivedNonce)) {
+            return;
+        }
+        String name = peerName;
+        nonce = null;
+
+        chatProgram.sendMessageTo(S_PUNCH.token() + " " + receivedNonce, peerAddress, peerPort); // so the peer completes too
+        chatProgram.sendMessage(S_PUNCHOK.token() + " " + receivedNonce); // still addressed to the hub
+        chatProgram.switchToDirectPeer(peerAddress, peerPort);
+        chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "DIRECT_PEER_LINK", "Name", name));
+        chatProgram.sendSalve();
+    }
+
+    private synchronized boolean isAttempting(String candidate) {
+        return nonce != null && nonce.equals(candidate);
+    }
+
+    private synchronized void fail(String attemptNonce) {
+        if (!isAttempting(attemptNonce)) {
+            return; // succeeded, or replaced by a newer introduction
+        }
+        String name = peerName;
+        nonce = null;
+        try {
+            chatProgram.sendMessage(S_PUNCHFAIL.token() + " " + attemptNonce);
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+        chatProgram.leaveMulticastGroup(); // the hub relays privately; room traffic would leak in
+        chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "PEER_RELAYED", "Name", name));
+    }
+}
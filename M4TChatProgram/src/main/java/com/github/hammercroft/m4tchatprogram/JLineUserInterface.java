@@ -5,9 +5,14 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jline.reader.EndOfFileException;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
@@ -21,16 +26,35 @@ import org.jline.terminal.Terminal;
  * Handles input, output, and local command processing, as well as
  * resolving ports and target addresses from the user.
  * </p>
+ * <p>
+ * Received messages and notifications are never printed on the thread that
+ * reports them, which is usually the network receiver: they are put on a
+ * bounded queue that a render thread drains. Whatever is queued by the time
+ * it looks is printed with one {@code printAbove}, so a burst costs one redraw
+ * of the prompt rather than one per message. If the terminal falls more than
+ * {@link #RENDER_QUEUE_CAPACITY} lines behind, further lines are dropped, and
+ * how many is printed with the next batch.
+ * </p>
  * 
  * @author hammercroft
  */
 public class JLineUserInterface implements UserInterface {
 
+    /** Lines that may wait for the terminal before new ones are dropped. */
+    public static final int RENDER_QUEUE_CAPACITY = 1024;
+
+    /** Most lines printed with one {@code printAbove}. */
+    public static final int MAX_RENDER_BATCH = 256;
+
     M4TChatProgram chatProgram;
     Scanner scanner = new Scanner(System.in); // only for user port & address resolution
     Terminal terminal;
     LineReader reader;
 
+    private final BlockingQueue<String> renderQueue = new ArrayBlockingQueue<>(RENDER_QUEUE_CAPACITY);
+    private final AtomicLong droppedLines = new AtomicLong();
+    private volatile Thread renderThread; // null until the terminal is up; lines are printed directly before
+
     /**
      * Constructs a new JLine user interface for the given chat program.
      *
@@ -73,10 +97,58 @@ public class JLineUserInterface implements UserInterface {
      * @param message the message to display
      */
     private void displayNotification(String message) {
-        if (reader == null) {
+        if (renderThread == null) {
             System.out.println(message);
         } else {
-            reader.printAbove(message);
+            render(message);
+        }
+    }
+
+    /**
+     * Queues a line for the render thread without waiting, or counts it as
+     * dropped if the queue is full.
+     *
+     * @param line the text to print above the prompt
+     */
+    private void render(String line) {
+        if (!renderQueue.offer(line)) {
+            droppedLines.incrementAndGet();
+        }
+    }
+
+    /**
+     * Prints queued lines until interrupted, each batch with one
+     * {@code printAbove}; on interruption, prints what is left and returns.
+     */
+    private void renderLoop() {
+        List<String> batch = new ArrayList<>(MAX_RENDER_BATCH);
+        StringBuilder text = new StringBuilder();
+        boolean interrupted = false;
+        while (!interrupted || !renderQueue.isEmpty() || droppedLines.get() > 0) {
+            if (!interrupted) {
+                try {
+                    batch.add(renderQueue.take());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            renderQueue.drainTo(batch, MAX_RENDER_BATCH - batch.size());
+            text.setLength(0);
+            for (String line : batch) {
+                text.append(line);
+                if (text.length() == 0 || text.charAt(text.length() - 1) != '\n') {
+                    text.append('\n');
+                }
+            }
+            long dropped = droppedLines.getAndSet(0);
+            if (dropped > 0) {
+                text.append("(").append(dropped).append(dropped == 1 ? " line" : " lines")
+                    .append(" dropped; the terminal could not keep up.)\n");
+            }
+            batch.clear();
+            if (text.length() > 0) {
+                reader.printAbove(text.toString());
+            }
         }
     }
 
@@ -86,14 +158,8 @@ public class JLineUserInterface implements UserInterface {
      * @param notificationData the data to display
      */
     private void fallbackDisplay(Map<String, Object> notificationData) {
-        if (reader == null) {
-            for (Map.Entry<String, Object> entry : notificationData.entrySet()) {
-                System.out.println(entry.getKey() + " -> " + entry.getValue());
-            }
-        } else {
-            for (Map.Entry<String, Object> entry : notificationData.entrySet()) {
-                reader.printAbove(entry.getKey() + " -> " + entry.getValue());
-            }
+        for (Map.Entry<String, Object> entry : notificationData.entrySet()) {
+            displayNotification(entry.getKey() + " -> " + entry.getValue());
         }
     }
 
@@ -125,6 +191,11 @@ public class JLineUserInterface implements UserInterface {
         this.scanner = null;
         this.reader = LineReaderBuilder.builder().terminal(this.terminal).build();
 
+        Thread renderer = new Thread(this::renderLoop, "RenderThread");
+        renderer.setDaemon(true);
+        renderer.start();
+        this.renderThread = renderer;
+
         new Thread(() -> {
             try {
                 terminal.writer().println("(Communication Start.)");
@@ -145,14 +216,14 @@ public class JLineUserInterface implements UserInterface {
     }
 
     /**
-     * Displays a received message in the terminal.
+     * Queues a received message for display in the terminal.
      *
      * @param messageId the ID of the message
      * @param message the message content
      */
     @Override
     public void handleRecievedMessage(int messageId, String message) {
-        reader.printAbove(" (+) " + message);
+        displayNotification(" (+) " + message);
     }
 
     /**
@@ -184,7 +255,11 @@ public class JLineUserInterface implements UserInterface {
                     int port = chatProgram.state.getTheirPort();
                     StringBuilder sb = new StringBuilder();
                     sb.append("--------------------------------------------------------------------------------\n");
-                    sb.append("Starting communication to ").append(addr).append(":").append(port).append("\n");
+                    sb.append("Starting communication to ").append(addr).append(":").append(port);
+                    if (chatProgram.peerMesh.isActive()) {
+                        sb.append(" and the other mesh peers (see .PEERS)");
+                    }
+                    sb.append("\n");
                     sb.append("Due to the nature of delivery via UDP, the delivery of messages between you and your peer is not guaranteed.\n\n");
                     sb.append("RECEIVED MESSAGES ARE NOT GUARANTEED TO ORIGINATE FROM YOUR INTENDED COMMUNICATION TARGET.\n");
                     sb.append("YOUR MESSAGES ARE NOT ENCRYPTED.\n\n");
@@ -201,6 +276,39 @@ public class JLineUserInterface implements UserInterface {
                 case "TARGET_PEER_ONLINE":
                     displayNotification("Peer is online!");
                     break;
+                case "DIRECT_PEER_LINK":
+                    displayNotification("Connected directly to " + notificationData.get("Name") + ". Enter .HUB to go back to the hub.");
+                    break;
+                case "PEER_RELAYED":
+                    displayNotification("Could not connect directly to " + notificationData.get("Name") + "; the hub will relay.");
+                    break;
+                case "DELIVERY_FAILED":
+                    displayNotification("Not delivered after " + notificationData.get("Attempts") + " attempts: " + notificationData.get("Message"));
+                    break;
+                case "MESSAGE_TOO_LONG":
+                    displayNotification("Message not sent: it would take more than " + notificationData.get("Fragments") + " fragments.");
+                    break;
+                case "SHARED_MEMORY_ATTACHED":
+                    displayNotification("Attached to the hub through shared memory.");
+                    break;
+                case "REDIRECTED":
+                    displayNotification("Redirected to hub " + notificationData.get("Address") + ".");
+                    break;
+                case "LINK_DEAD":
+                    displayNotification("Nothing heard for " + notificationData.get("Seconds") + " s; the link looks dead.");
+                    break;
+                case "LINK_RESTORED":
+                    displayNotification("The link is back.");
+                    break;
+                case "MESH_PEER_ONLINE":
+                    displayNotification("Mesh peer " + notificationData.get("Peer") + " is online.");
+                    break;
+                case "MESH_PEER_OFFLINE":
+                    displayNotification("Mesh peer " + notificationData.get("Peer") + " went silent.");
+                    break;
+                case "MTU_NEGOTIATED":
+                    displayNotification("Payload size negotiated: " + notificationData.get("Size") + " bytes.");
+                    break;
                 default:
                     fallbackDisplay(notificationData);
                     break;
@@ -214,11 +322,21 @@ public class JLineUserInterface implements UserInterface {
     /**
      * Handles shutdown of the user interface.
      * <p>
-     * Closes the terminal and prints a goodbye message.
+     * Prints what is still queued, then closes the terminal and prints a
+     * goodbye message.
      * </p>
      */
     @Override
     public void handleShutdown() {
+        Thread renderer = renderThread;
+        if (renderer != null) {
+            renderer.interrupt();
+            try {
+                renderer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         terminal.writer().println("Goodbye!");
         try {
             terminal.close();
@@ -3,43 +3,169 @@ package com.github.hammercroft.m4tchatprogram;
 import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
- *
- * @author hammercroft
+ * Keeps the link to the hub or peer alive with as few datagrams as it needs.
+ * <p>
+ * A {@code |^~KA} is only sent when nothing else went out for a whole
+ * interval, so chat traffic keeps the link alive by itself. The interval starts
+ * at {@link #BASE_INTERVAL_MS} and widens as far as the path allows: while
+ * idle, we ask the other side with {@code |^~KAPROBE <ms>} to answer after that
+ * many milliseconds, and keep silent meanwhile. A {@code |^~KAPROBEOK} that
+ * still reaches us proves that the NAT mappings on the way survive that much
+ * silence, and the interval becomes four fifths of it; the next probe doubles
+ * the silence, up to {@link #MAX_INTERVAL_MS}. The first probe that goes
+ * unanswered settles the interval for good. Hubs also stop expecting our
+ * keep-alives as often once they are asked to confirm a silence.
+ * </p>
+ * <p>
+ * The timer runs on the chat program's shared scheduler. Mesh mode never
+ * probes, since a probe confirms one path only. Now and then, the
+ * {@link LinkMonitor} timestamps a keep-alive to measure the round trip.
+ * </p>
  */
 public class KeepAliveTransmitter {
-    public static Thread start(M4TChatProgram chatProgram) {
-        Thread keepAliveThread = new Thread(() -> {
-            final long intervalNs = 3_000_000_000L;
-            long nextSendTime = System.nanoTime() + intervalNs;
-
-            while (!Thread.currentThread().isInterrupted()) {
-                long now = System.nanoTime();
-
-                if (now >= nextSendTime) {
-                    try {
-                        chatProgram.sendMessage(S_KA.token());
-                        nextSendTime += intervalNs;
-                    } catch (IOException ex) {
-                        System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
-                    }
+
+    /** Interval used until a longer silence was confirmed. */
+    public static final long BASE_INTERVAL_MS = 3_000;
+
+    /** Longest interval; a hub reaps sessions silent for five minutes. */
+    public static final long MAX_INTERVAL_MS = 60_000;
+
+    /** How long after the requested delay a probe answer is still waited for. */
+    public static final long PROBE_GRACE_MS = 2_000;
+
+    private final M4TChatProgram chatProgram;
+    private volatile long lastSentNanos = System.nanoTime();
+
+    // guarded by this
+    private long intervalMs = BASE_INTERVAL_MS;
+    private long confirmedMs = BASE_INTERVAL_MS;
+    private boolean settled = false;
+    private long probeMs = 0; // the silence being probed; 0 if no probe is out
+    private long probeSentNanos;
+    private boolean running = false;
+    private ScheduledFuture<?> timer;
+
+    /**
+     * Creates a keep-alive transmitter for the given chat program. Nothing is
+     * sent until {@link #start()}.
+     *
+     * @param chatProgram the chat program whose link is kept alive
+     */
+    public KeepAliveTransmitter(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Starts keeping the link alive.
+     */
+    public synchronized void start() {
+        running = true;
+        reschedule();
+    }
+
+    /**
+     * Records that a datagram went out, which postpones the next keep-alive.
+     */
+    public void noteSent() {
+        lastSentNanos = System.nanoTime();
+    }
+
+    /**
+     * Records a {@code |^~KAPROBEOK}. The silence counts as confirmed only if
+     * nothing was sent while waiting for it.
+     *
+     * @param answeredMs the silence the answer was requested for
+     */
+    public synchronized void probeAnswered(long answeredMs) {
+        if (probeMs == 0 || answeredMs != probeMs) {
+            return; // late, or for a probe we already gave up on
+        }
+        if (lastSentNanos == probeSentNanos) {
+            confirmedMs = probeMs;
+            intervalMs = Math.max(BASE_INTERVAL_MS, confirmedMs * 4 / 5);
+            chatProgram.state.setKeepAliveIntervalMillis(intervalMs);
+            settled = confirmedMs >= MAX_INTERVAL_MS;
+        }
+        probeMs = 0;
+        reschedule();
+    }
+
+    /**
+     * Goes back to the base interval, e.g. after switching to another hub or
+     * peer, whose path has to be probed anew.
+     */
+    public synchronized void reset() {
+        intervalMs = BASE_INTERVAL_MS;
+        confirmedMs = BASE_INTERVAL_MS;
+        settled = false;
+        probeMs = 0;
+        chatProgram.state.setKeepAliveIntervalMillis(intervalMs);
+        reschedule();
+    }
+
+    /**
+     * Stops sending keep-alives.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (timer != null) {
+            timer.cancel(false);
+        }
+    }
+
+    private synchronized void tick() {
+        if (!running) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            if (probeMs != 0) {
+                if (lastSentNanos != probeSentNanos) {
+                    probeMs = 0; // something went out meanwhile; the probe proves nothing now
+                } else if (now - probeSentNanos < TimeUnit.MILLISECONDS.toNanos(probeMs + PROBE_GRACE_MS)) {
+                    reschedule();
+                    return; // stay silent until the answer is due
                 } else {
-                    long sleepNs = nextSendTime - now;
-                    try {
-                        long sleepMs = sleepNs / 1_000_000;
-                        int sleepNano = (int) (sleepNs % 1_000_000);
-                        Thread.sleep(sleepMs, sleepNano);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
+                    probeMs = 0; // unanswered: the path, or the other side, does not allow more
+                    settled = true;
+                    chatProgram.linkMonitor.sendKeepAlive();
+                }
+            } else if (now - lastSentNanos >= TimeUnit.MILLISECONDS.toNanos(intervalMs)) {
+                if (!settled && !chatProgram.peerMesh.isActive()) {
+                    probeMs = Math.min(confirmedMs * 2, MAX_INTERVAL_MS);
+                    chatProgram.sendMessage(S_KAPROBE.token() + " " + probeMs);
+                    probeSentNanos = lastSentNanos;
+                } else {
+                    chatProgram.linkMonitor.sendKeepAlive();
                 }
             }
-        }, "KeepAliveThread");
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+        reschedule();
+    }
+
+    private void reschedule() {
+        if (!running) {
+            return;
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSentNanos);
+        long delay = Math.max(0, intervalMs - elapsedMs);
+        if (probeMs != 0) {
+            // look in every interval anyway: if chat ends the probe's silence, keep-alives resume from there
+            delay = Math.min(intervalMs, probeMs + PROBE_GRACE_MS - elapsedMs);
+        }
+        schedule(delay);
+    }
 
-        keepAliveThread.setDaemon(true);
-        keepAliveThread.start();
-        return keepAliveThread;
+    private void schedule(long delayMs) {
+        if (timer != null) {
+            timer.cancel(false);
+        }
+        timer = chatProgram.scheduler.schedule(this::tick, Math.max(1, delayMs), TimeUnit.MILLISECONDS);
     }
 }
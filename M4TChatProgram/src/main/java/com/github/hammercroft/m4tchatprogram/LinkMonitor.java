@@ -0,0 +1,389 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Estimates round-trip time, jitter and loss on the link to the hub or peer,
+ * and notices when the link goes dead.
+ * <p>
+ * Round trips are sampled from two exchanges that happen anyway: the ACK of
+ * every chat message we send, and a timestamped keep-alive. At most every
+ * {@link #ECHO_INTERVAL_MS}, the keep-alive that is due goes out as
+ * {@code |^~KAECHO <timestamp>} instead of {@code |^~KA}, and the other side
+ * returns the timestamp in {@code |^~KAECHOOK}. A chat message or echo still
+ * unanswered after {@link #LOSS_TIMEOUT_MS} counts as lost; a chat message
+ * that reliable mode retransmits counts as lost at once, and its ACK gives no
+ * sample, since it cannot tell which copy it answers.
+ * </p>
+ * <p>
+ * Samples go into a {@link RollingHistogram} over the last minute. Jitter is the
+ * mean deviation between consecutive round trips, smoothed as in RFC 3550. If
+ * nothing at all arrives for four keep-alive intervals (at least
+ * {@link #DEAD_AFTER_MS}), the user is told the link looks dead, and again once
+ * it recovers. Mesh mode is not monitored.
+ * </p>
+ */
+public class LinkMonitor {
+
+    /** Least time between two timestamped keep-alives. */
+    public static final long ECHO_INTERVAL_MS = 10_000;
+
+    /** How long an ACK or echo is waited for before the exchange counts as lost. */
+    public static final long LOSS_TIMEOUT_MS = 3_000;
+
+    /** Least silence after which the link is reported dead. */
+    public static final long DEAD_AFTER_MS = 30_000;
+
+    private static final int PENDING = 256; // chat messages awaiting an ACK, by message ID modulo this
+
+    private final M4TChatProgram chatProgram;
+    private final RollingHistogram histogram = new RollingHistogram();
+
+    // written by the receiver thread only
+    private volatile double smoothedRttMillis = -1;
+    private volatile double minRttMillis = -1;
+    private volatile double jitterMillis = 0;
+    private double lastRttMillis = -1;
+
+    // guarded by this
+    private final short[] pendingIds = new short[PENDING];
+    private final long[] pendingSentNanos = new long[PENDING]; // 0 marks a free slot
+    private long lastEchoNanos = 0;
+    private long echoOutstanding = 0; // timestamp of the unanswered echo, or 0
+    private boolean dead = false;
+
+    /**
+     * Creates a link monitor for the given chat program.
+     *
+     * @param chatProgram the chat program whose link is monitored
+     */
+    public LinkMonitor(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Starts the once-a-second sweep for losses and dead links.
+     */
+    public void start() {
+        chatProgram.scheduler.scheduleWithFixedDelay(this::sweep, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Forgets everything measured, e.g. after switching to another hub or peer.
+     */
+    public synchronized void reset() {
+        histogram.clear();
+        smoothedRttMillis = -1;
+        minRttMillis = -1;
+        jitterMillis = 0;
+        lastRttMillis = -1;
+        Arrays.fill(pendingSentNanos, 0);
+        echoOutstanding = 0;
+        dead = false;
+    }
+
+    /**
+     * Records a chat message sent to the current target, to time its ACK.
+     *
+     * @param messageId the message ID of the frame
+     */
+    public synchronized void chatSent(short messageId) {
+        int slot = messageId & (PENDING - 1);
+        pendingIds[slot] = messageId;
+        pendingSentNanos[slot] = System.nanoTime(); // an older message in the slot is simply not measured
+    }
+
+    /**
+     * Records an ACK from the current target.
+     *
+     * @param messageId the acknowledged message ID
+     */
+    public void acknowledged(short messageId) {
+        long sent;
+        synchronized (this) {
+            int slot = messageId & (PENDING - 1);
+            sent = pendingSentNanos[slot];
+            if (sent == 0 || pendingIds[slot] != messageId) {
+                return; // a duplicate ACK, or one that timed out already
+            }
+            pendingSentNanos[slot] = 0;
+        }
+        sample(System.nanoTime() - sent);
+    }
+
+    /**
+     * Records that reliable mode had to send a chat message again: its first
+     * copy counts as lost, and its ACK will not be measured.
+     *
+     * @param messageId the retransmitted message ID
+     */
+    public synchronized void retransmitted(short messageId) {
+        int slot = messageId & (PENDING - 1);
+        if (pendingSentNanos[slot] != 0 && pendingIds[slot] == messageId) {
+            pendingSentNanos[slot] = 0;
+            histogram.recordLoss();
+        }
+    }
+
+    /**
+     * Sends the keep-alive that is due, timestamped if an echo is due too.
+     *
+     * @throws IOException if the keep-alive cannot be sent
+     */
+    public void sendKeepAlive() throws IOException {
+        long now = System.nanoTime();
+        boolean echo;
+        synchronized (this) {
+            echo = !chatProgram.peerMesh.isActive() && echoOutstanding == 0
+                    && now - lastEchoNanos >= TimeUnit.MILLISECONDS.toNanos(ECHO_INTERVAL_MS);
+            if (echo) {
+                lastEchoNanos = now;
+                echoOutstanding = now;
+            }
+        }
+        chatProgram.sendMessage(echo ? S_KAECHO.token() + " " + now : S_KA.token());
+    }
+
+    /**
+     * Records a {@code |^~KAECHOOK}.
+     *
+     * @param timestamp the timestamp the echo returned
+     */
+    public void echoed(long timestamp) {
+        synchronized (this) {
+            if (timestamp == 0 || timestamp != echoOutstanding) {
+                return; // not ours, or counted as lost already
+            }
+            echoOutstanding = 0;
+        }
+        sample(System.nanoTime() - timestamp);
+    }
+
+    /**
+     * Returns a one-line summary for {@code .PROGRAMSTATE}.
+     *
+     * @return the summary
+     */
+    public String summary() {
+        if (smoothedRttMillis < 0) {
+            return "  link: no round trips measured yet\n";
+        }
+        return String.format("  link: rtt %.1f ms, jitter %.1f ms, loss %s%n",
+                smoothedRttMillis, jitterMillis, lossText(histogram.snapshot()));
+    }
+
+    /**
+     * Describes the link in detail for the {@code .LINK} command.
+     *
+     * @return several lines, histogram included
+     */
+    public String describe() {
+        long[] counts = histogram.snapshot();
+        long samples = 0;
+        for (int b = 0; b < RollingHistogram.BUCKETS; b++) {
+            samples += counts[b];
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("Link to ").append(chatProgram.state.getTheirAddress().getHostAddress())
+          .append(':').append(chatProgram.state.getTheirPort())
+          .append(" over the last ").append(RollingHistogram.WINDOW_MILLIS / 1000).append(" s:\n");
+        if (smoothedRttMillis < 0) {
+            sb.append("  No round trips measured yet.\n");
+        } else {
+            sb.append(String.format("  RTT: smoothed %.1f ms, min %.1f ms, p50 <= %s, p90 <= %s, p99 <= %s (%d samples)%n",
+                    smoothedRttMillis, minRttMillis,
+                    RollingHistogram.label(histogram.percentileBucket(counts, 0.50)),
+                    RollingHistogram.label(histogram.percentileBucket(counts, 0.90)),
+                    RollingHistogram.label(histogram.percentileBucket(counts, 0.99)), samples));
+            sb.append(String.format("  Jitter: %.1f ms%n", jitterMillis));
+        }
+        sb.append("  Loss: ").append(lossText(counts)).append('\n');
+        long last = chatProgram.state.getLastReceivedTransmissionTime();
+        if (last != 0) {
+            sb.append(String.format("  Last heard: %.1f s ago%n", (System.currentTimeMillis() - last) / 1000.0));
+        }
+        long peak = 1;
+        for (int b = 0; b < RollingHistogram.BUCKETS; b++) {
+            peak = Math.max(peak, counts[b]);
+        }
+        for (int b = 0; b < RollingHistogram.BUCKETS; b++) {
+            if (counts[b] == 0) {
+                continue;
+            }
+            int bar = (int) Math.max(1, counts[b] * 40 / peak);
+            sb.append(String.format("  %9s | %s %d%n", "<= " + RollingHistogram.label(b), "#".repeat(bar), counts[b]));
+        }
+        return sb.toString();
+    }
+
+    private static String lossText(long[] counts) {
+        long answered = counts[RollingHistogram.ANSWERED];
+        long lost = counts[RollingHistogram.LOST];
+        if (answered + lost == 0) {
+            return "unknown";
+        }
+        return String.format("%d of %d (%.1f%%)", lost, answered + lost, 100.0 * lost / (answered + lost));
+    }
+
+    private void sample(long rttNanos) {
+        double rtt = rttNanos / 1_000_000.0;
+        histogram.record(rttNanos / 1_000);
+        if (lastRttMillis >= 0) {
+            jitterMillis += (Math.abs(rtt - lastRttMillis) - jitterMillis) / 16;
+        }
+        lastRttMillis = rtt;
+        smoothedRttMillis = smoothedRttMillis < 0 ? rtt : 0.875 * smoothedRttMillis + 0.125 * rtt;
+        minRttMillis = minRttMillis < 0 ? rtt : Math.min(minRttMillis, rtt);
+    }
+
+    private void sweep() {
+        if (chatProgram.peerMesh.isActive()) {
+            return;
+        }
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(LOSS_TIMEOUT_MS);
+        String notice = null;
+        synchronized (this) {
+            for (int slot = 0; slot < PENDING; slot++) {
+                if (pendingSentNanos[slot] != 0 && now - pendingSentNanos[slot] > timeout) {
+                    pendingSentNanos[slot] = 0;
+                    histogram.recordLoss();
+                }
+            }
+            if (echoOutstanding != 0 && now - echoOutstanding > timeout) {
+                echoOutstanding = 0;
+                histogram.recordLoss();
+            }
+            long last = chatProgram.state.getLastReceivedTransmissionTime();
+            long silence = System.currentTimeMillis() - last;
+            long deadAfter = Math.max(DEAD_AFTER_MS, 4 * chatProgram.state.getKeepAliveIntervalMillis());
+            if (last != 0 && !dead && silence > deadAfter) {
+                dead = true;
+                notice = "LINK_DEAD";
+            } else if (dead && silence <= deadAfter) {
+                dead = false;
+                notice = "LINK_RESTORED";
+            }
+        }
+        if (notice != null) {
+            chatProgram.userInterface.handleProgramNotification(Map.of(
+                    "Topic", notice,
+                    "Seconds", (System.currentTimeMillis() - chatProgram.state.getLastReceivedTransmissionTime()) / 1000
+            ));
+        }
+    }
+
+    /**
+     * A histogram of round-trip times over a sliding window, safe to update
+     * and read from any thread without locks.
+     * <p>
+     * The window is split into {@link #SLOTS} time slots, each with its own
+     * counters in one shared {@link AtomicLongArray}. A slot is zeroed by the
+     * first writer that finds it stamped with an old epoch, so counts racing
+     * with that turnover may be lost; the figures are estimates anyway.
+     * </p>
+     */
+    static final class RollingHistogram {
+
+        /** Upper bounds of the buckets, in microseconds. */
+        static final long[] BOUNDS_MICROS = {
+            500, 1_000, 2_000, 5_000, 10_000, 20_000, 50_000, 100_000,
+            200_000, 500_000, 1_000_000, 2_000_000, Long.MAX_VALUE
+        };
+        static final int BUCKETS = BOUNDS_MICROS.length;
+        static final int ANSWERED = BUCKETS; // columns after the buckets
+        static final int LOST = BUCKETS + 1;
+        static final int COLUMNS = BUCKETS + 2;
+        static final int SLOTS = 6;
+        static final long SLOT_MILLIS = 10_000;
+        static final long WINDOW_MILLIS = SLOTS * SLOT_MILLIS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(SLOTS * COLUMNS);
+        private final AtomicLongArray epochs = new AtomicLongArray(SLOTS);
+
+        void record(long rttMicros) {
+            int bucket = 0;
+            while (rttMicros > BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            int slot = currentSlot();
+            counts.incrementAndGet(slot * COLUMNS + bucket);
+            counts.incrementAndGet(slot * COLUMNS + ANSWERED);
+        }
+
+        void recordLoss() {
+            counts.incrementAndGet(currentSlot() * COLUMNS + LOST);
+        }
+
+        void clear() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+
+        /**
+         * Sums the slots still inside the window.
+         *
+         * @return one count per bucket, then the answered and lost counts
+         */
+        long[] snapshot() {
+            long epoch = epochNow();
+            long[] sum = new long[COLUMNS];
+            for (int slot = 0; slot < SLOTS; slot++) {
+                if (epoch - epochs.get(slot) >= SLOTS) {
+                    continue; // stale; not yet reused
+                }
+                for (int c = 0; c < COLUMNS; c++) {
+                    sum[c] += counts.get(slot * COLUMNS + c);
+                }
+            }
+            return sum;
+        }
+
+        int percentileBucket(long[] snapshot, double fraction) {
+            long total = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                total += snapshot[b];
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += snapshot[b];
+                if (seen >= rank && seen > 0) {
+                    return b;
+                }
+            }
+            return BUCKETS - 1;
+        }
+
+        static String label(int bucket) {
+            long micros = BOUNDS_MICROS[bucket];
+            if (micros == Long.MAX_VALUE) {
+                return "inf";
+            }
+            return micros < 1_000 ? (micros / 1000.0) + " ms" : (micros / 1_000) + " ms";
+        }
+
+        private static long epochNow() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) / SLOT_MILLIS;
+        }
+
+        private int currentSlot() {
+            long epoch = epochNow();
+            int slot = (int) Math.floorMod(epoch, (long) SLOTS);
+            long seen = epochs.get(slot);
+            if (seen != epoch && epochs.compareAndSet(slot, seen, epoch)) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    counts.set(slot * COLUMNS + c, 0);
+                }
+            }
+            return slot;
+        }
+    }
+}
@@ -18,7 +18,13 @@ public enum LocalCommand {
     L_SALVE(".SALVE"),
 
     /** A local command. */
-    L_POKE(".POKE");
+    L_POKE(".POKE"),
+
+    /** A local command. */
+    L_INTRO(".INTRO"),
+
+    /** A local command. */
+    L_HUB(".HUB");
 
     private final String command;
 
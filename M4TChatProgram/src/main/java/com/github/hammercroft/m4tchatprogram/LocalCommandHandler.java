@@ -32,6 +32,10 @@ public class LocalCommandHandler {
      *   <li><code>.EXIT</code> – shuts down the program.</li>
      *   <li><code>.PROGRAMSTATE</code> – prints the current program state to the user interface.</li>
      *   <li><code>.SALVE</code>, <code>.POKE</code> – sends a salve message via {@link M4TChatProgram#sendSalve()}.</li>
+     *   <li><code>.INTRO &lt;username&gt;</code> – asks the hub to introduce us to a chatter for a direct connection.</li>
+     *   <li><code>.HUB</code> – leaves a direct connection and returns to the hub.</li>
+     *   <li><code>.LINK</code> – shows round-trip time, jitter and loss measured on the link.</li>
+     *   <li><code>.PEERS</code> – lists the mesh peers and whether they are online.</li>
      *   <li>Unknown commands – triggers a notification for <code>UNKNOWN_LOCAL_COMMAND</code>.</li>
      * </ul>
      * </p>
@@ -41,14 +45,15 @@ public class LocalCommandHandler {
     void handle(String command) {
         if (command == null) return;
 
-        switch (command.toUpperCase()) {
+        String[] words = command.trim().split(" ", 2);
+        switch (words[0].toUpperCase()) {
             case ".EXIT":
                 chatProgram.shutdown(0);
                 break;
 
             case ".PROGRAMSTATE":
                 chatProgram.userInterface.handleProgramNotification(
-                        Map.of("Topic", "PUSH_TEXT", "Text", chatProgram.state.toString())
+                        Map.of("Topic", "PUSH_TEXT", "Text", chatProgram.state.toString() + chatProgram.linkMonitor.summary())
                 );
                 break;
 
@@ -62,6 +67,45 @@ public class LocalCommandHandler {
                 }
                 break;
 
+            case ".INTRO":
+                if (words.length < 2 || words[1].isBlank()) {
+                    chatProgram.userInterface.handleProgramNotification(
+                            Map.of("Topic", "PUSH_TEXT", "Text", "Usage: .INTRO <username>")
+                    );
+                    break;
+                }
+                try {
+                    chatProgram.sendMessage(Semaphore.S_INTRO.token() + " " + words[1].trim());
+                } catch (IOException ex) {
+                    System.getLogger(M4TChatProgram.class.getName())
+                          .log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+                break;
+
+            case ".HUB":
+                try {
+                    if (!chatProgram.returnToHub()) {
+                        chatProgram.userInterface.handleProgramNotification(
+                                Map.of("Topic", "PUSH_TEXT", "Text", "Not on a direct connection.")
+                        );
+                    }
+                } catch (IOException ex) {
+                    System.getLogger(M4TChatProgram.class.getName())
+                          .log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+                break;
+
+            case ".LINK":
+                chatProgram.userInterface.handleProgramNotification(
+                        Map.of("Topic", "PUSH_TEXT", "Text", chatProgram.linkMonitor.describe())
+                );
+                break;
+
+            case ".PEERS":
+                chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "PUSH_TEXT", "Text",
+                        chatProgram.peerMesh.isActive() ? chatProgram.peerMesh.describe() : "Not in mesh mode."));
+                break;
+
             default:
                 chatProgram.userInterface.handleProgramNotification(
                         Map.of("Topic", "UNKNOWN_LOCAL_COMMAND")
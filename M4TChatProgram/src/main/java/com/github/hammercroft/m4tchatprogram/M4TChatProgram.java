@@ -4,13 +4,24 @@ import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * An instance of the Messenger For Tinkerers Chat Program (M4TChatProgram).
@@ -27,17 +38,39 @@ public class M4TChatProgram implements Runnable {
      */
     public static final int DEFAULT_BUFFER_SIZE = 800;
 
+    /**
+     * Smallest buffer size that may be configured or negotiated.
+     */
+    public static final int MIN_BUFFER_SIZE = 64;
+
+    /**
+     * Largest payload a single UDP datagram can carry.
+     */
+    public static final int MAX_BUFFER_SIZE = 65_507;
+
+    /**
+     * Room kept for the {@code |^~SEQ <seq> } envelope of chat sent over a
+     * direct peer link.
+     */
+    private static final int SEQUENCE_ENVELOPE_ROOM = 28;
+
+    /**
+     * A keep-alive's content, which the receiver thread absorbs without
+     * building a Payload.
+     */
+    private static final byte[] KEEP_ALIVE = S_KA.token().getBytes(StandardCharsets.US_ASCII);
+
     /**
      * Whether or not this instance is actively carrying out its function.
      */
     public volatile boolean running = true;
 
     /**
-     * A dedicated worker for transmitting |^~KA every 3 seconds.
+     * Transmits |^~KA whenever the link has been quiet for the keep-alive interval.
      *
      * @see KeepAliveTransmitter
      */
-    public Thread kaThread;
+    public final KeepAliveTransmitter keepAlive = new KeepAliveTransmitter(this);
 
     /**
      * Current program state; may be modified or replaced at runtime.
@@ -64,6 +97,62 @@ public class M4TChatProgram implements Runnable {
      */
     public LocalCommandHandler localCommandHandler;
 
+    /**
+     * Confirms larger payload sizes after a handshake, if enabled in the state.
+     */
+    public PathMtuProber mtuProber;
+
+    /**
+     * Punches through to peers that a hub introduces us to.
+     */
+    public HolePuncher holePuncher;
+
+    /**
+     * Detects gaps in a hub's sequenced broadcasts and NACKs them.
+     */
+    public SequenceTracker sequenceTracker;
+
+    /**
+     * Releases sequenced payloads in order, within the latency budget set in the state.
+     */
+    public ReorderBuffer reorderBuffer;
+
+    private ScheduledFuture<?> reorderTimer; // guarded by this
+
+    /**
+     * Adds parity to our traffic and rebuilds lost datagrams, if enabled in the state.
+     */
+    public ForwardErrorCorrector errorCorrector;
+
+    /**
+     * Joins fragments of messages that did not fit one datagram.
+     */
+    public FragmentAssembler fragmentAssembler = new FragmentAssembler();
+
+    /**
+     * Retransmits unacknowledged chat messages, if reliable mode is enabled in the state.
+     */
+    public ReliableSender reliableSender;
+
+    /**
+     * Measures round trips, jitter and loss on the link to the hub or peer.
+     */
+    public final LinkMonitor linkMonitor = new LinkMonitor(this);
+
+    /**
+     * Peers talked to directly in mesh mode; empty unless {@code --peer} was given.
+     */
+    public final PeerMesh peerMesh = new PeerMesh(this);
+
+    /**
+     * Timers shared by the program's helpers, such as retransmissions.
+     */
+    public final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "ProgramTimers");
+        t.setDaemon(true);
+        return t;
+    });
+
     /**
      * Storage for message IDs for received messages. IDs are retained for at
      * least 30 seconds.
@@ -100,6 +189,7 @@ public class M4TChatProgram implements Runnable {
         if (state.getBufferSize() == 0) {
             state.setBufferSize(DEFAULT_BUFFER_SIZE);
         }
+        state.setBufferSize(Math.max(MIN_BUFFER_SIZE, Math.min(state.getBufferSize(), MAX_BUFFER_SIZE)));
         if (state.getOurSocket() == null) {
             Optional<Integer> resolvedHomePort = userInterface.resolveOurPortFromUser();
             if (resolvedHomePort.isEmpty()) {
@@ -108,8 +198,9 @@ public class M4TChatProgram implements Runnable {
             }
             int ourPort = resolvedHomePort.get();
             try {
-                state.setOurSocket(new DatagramSocket(ourPort));
-            } catch (SocketException ex) {
+                // opened through a channel so that the receiver thread can read into a direct buffer
+                state.setOurSocket(DatagramChannel.open().bind(new InetSocketAddress(ourPort)).socket());
+            } catch (IOException ex) {
                 System.err.println("No valid operating port provided. Shutting down...");
                 shutdown(1);
             }
@@ -117,6 +208,11 @@ public class M4TChatProgram implements Runnable {
                 userInterface.handleProgramNotification(Map.of("Topic", "AUTOMATIC_PORT_ASSIGNMENT", "Port", state.getOurSocket().getLocalPort()));
             }
         }
+        if (peerMesh.isActive() && state.getTheirAddress() == null) {
+            // the first peer stands in as the target; sendMessage goes to every peer
+            state.setTheirAddress(peerMesh.firstPeer().getAddress());
+            state.setTheirPort(peerMesh.firstPeer().getPort());
+        }
         if ((state.getTheirAddress() == null) || (state.getTheirPort() == 0)) {
             Optional<Pair<InetAddress, Integer>> resolvedTargetSocket = userInterface.resolveTargetfromUser();
             if (resolvedTargetSocket.isEmpty()) {
@@ -135,6 +231,16 @@ public class M4TChatProgram implements Runnable {
 
         semaphoreHandler = new SemaphoreHandler(this);
         localCommandHandler = new LocalCommandHandler(this);
+        mtuProber = new PathMtuProber(this);
+        holePuncher = new HolePuncher(this);
+        sequenceTracker = new SequenceTracker(this);
+        reorderBuffer = new ReorderBuffer(state.getReorderBudgetMillis());
+        errorCorrector = new ForwardErrorCorrector(this);
+        reliableSender = new ReliableSender(this);
+        if (peerMesh.isActive()) {
+            peerMesh.start();
+        }
+        linkMonitor.start();
 
         userInterface.handleProgramNotification(Map.of("Topic", "STARTUP_NOTICE"));
 
@@ -149,22 +255,115 @@ public class M4TChatProgram implements Runnable {
      * The target is determined by {@code this.state.theirAddress} and
      * {@code this.state.theirPort}. The transmitted payload will include the
      * session discriminator from {@code this.state.sessionDiscriminator}.
+     * In mesh mode, the message goes to every peer instead.
      * </p>
      *
      * @param message the message to send
      * @return the transient message ID assigned to the on-air payload, which can
-     *         be used for tracking or acknowledgment purposes
+     *         be used for tracking or acknowledgment purposes; {@code 0} if the
+     *         message was too long to send at all
      * @throws IOException if an error occurs while sending the message
      */
     public short sendMessage(String message) throws IOException {
+        if (peerMesh.isActive()) {
+            return peerMesh.sendToAll(message);
+        }
+        return sendMessageTo(message, state.getTheirAddress(), state.getTheirPort());
+    }
+
+    /**
+     * Sends a message to an arbitrary endpoint from our socket, bypassing the
+     * configured messaging target. Used to punch through to introduced peers.
+     *
+     * @param message the message to send
+     * @param address the destination address
+     * @param port the destination port
+     * @return the transient message ID assigned to the on-air payload, or
+     *         {@code 0} if the message was too long to send at all
+     * @throws IOException if an error occurs while sending the message
+     */
+    public short sendMessageTo(String message, InetAddress address, int port) throws IOException {
+        boolean toTarget = port == state.getTheirPort() && address.equals(state.getTheirAddress());
+        boolean chat = !message.startsWith("|^~") || message.startsWith(S_FRAG.token() + " ");
+        boolean sequenced = chat && toTarget && state.getHubAddress() != null; // a direct peer link; hubs sequence what they relay
+        boolean relayed = chat && toTarget && state.getHubAddress() == null; // possibly through a hub, which prefixes it
+        int limit = toTarget ? state.getSendLimit() : DEFAULT_BUFFER_SIZE;
+        // what a hub relays must leave room for its prefix; the hub splits it again for recipients with a smaller limit
+        int relayedSize = limit - FragmentAssembler.HUB_HEADROOM;
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        if (content.length + 4 + (sequenced ? SEQUENCE_ENVELOPE_ROOM : 0) > limit
+                || (relayed && content.length + 4 > relayedSize)) {
+            List<String> fragments = FragmentAssembler.split(content, relayedSize);
+            if (fragments.isEmpty()) {
+                userInterface.handleProgramNotification(Map.of("Topic", "MESSAGE_TOO_LONG",
+                        "Fragments", FragmentAssembler.MAX_FRAGMENTS));
+                return 0; // nothing was sent
+            }
+            short firstId = 0;
+            for (int i = 0; i < fragments.size(); i++) {
+                short id = sendMessageTo(fragments.get(i), address, port);
+                firstId = i == 0 ? id : firstId;
+            }
+            return firstId;
+        }
+        if (sequenced) {
+            message = sequenceTracker.wrap(message);
+        }
         short randomId = (short) ThreadLocalRandom.current().nextInt(0, 65536);
         Payload outgoing = new Payload(randomId, state.getSessionDiscriminator(), message);
         byte[] bytes = outgoing.toBytes();
-        DatagramPacket outPacket = new DatagramPacket(bytes, bytes.length, state.getTheirAddress(), state.getTheirPort());
-        state.getOurSocket().send(outPacket);
+        if (toTarget && chat) {
+            linkMonitor.chatSent(randomId);
+        }
+        if (toTarget && chat && state.isReliableEnabled()) {
+            reliableSender.track(randomId, bytes, address, port, message); // before sending, so no ACK can overtake it
+        }
+        transmit(bytes, address, port, toTarget && !message.equals(S_KA.token())); // keep-alives are absorbed before a hub could record them
         return randomId;
     }
 
+    /**
+     * Puts a complete frame on its way: through the shared-memory ring when it
+     * is addressed to an attached hub, otherwise through our UDP socket.
+     *
+     * @param frame the complete frame, header included
+     * @param address the destination address
+     * @param port the destination port
+     * @param protect whether the frame is covered by forward error correction
+     * @throws IOException if an error occurs while sending the frame
+     */
+    void transmit(byte[] frame, InetAddress address, int port, boolean protect) throws IOException {
+        SharedMemoryLink link = state.getSharedMemoryLink();
+        if (link != null && link.isAttached() && port == state.getTheirPort()
+                && address.equals(state.getTheirAddress()) && link.offer(frame)) {
+            keepAlive.noteSent();
+            return; // handed to a hub on this machine without touching the network stack
+        }
+        DatagramPacket outPacket = new DatagramPacket(frame, frame.length, address, port);
+        state.getOurSocket().send(outPacket);
+        keepAlive.noteSent();
+        if (protect) {
+            errorCorrector.cover(frame);
+        }
+    }
+
+    /**
+     * Sends a message padded with filler characters so that the whole payload,
+     * header included, is exactly {@code payloadSize} bytes. Used for path-MTU probing.
+     *
+     * @param prefix the ASCII text placed before the padding
+     * @param payloadSize the exact payload size to send
+     * @throws IOException if an error occurs while sending the message
+     * @see #sendMessage(String)
+     */
+    public void sendPadded(String prefix, int payloadSize) throws IOException {
+        StringBuilder padded = new StringBuilder(payloadSize).append(prefix);
+        while (padded.length() < payloadSize - 4) { // 4 bytes of header
+            padded.append('x');
+        }
+        sendMessage(padded.toString());
+    }
+
     /**
      * Sends an General Message Acknowledgement semaphore message.
      *
@@ -173,8 +372,44 @@ public class M4TChatProgram implements Runnable {
      * @see #sendMessage(String)
      */
     public void sendAck(Payload received) throws IOException {
-        String ackMessage = S_ACK.token() + " " + received.getMessageId() + " " + received.getSessionDiscriminator() + " " + received.getContent();
-        sendMessage(ackMessage);
+        sendAckTo(received, state.getTheirAddress(), state.getTheirPort());
+    }
+
+    /**
+     * Sends an General Message Acknowledgement semaphore message to an
+     * arbitrary endpoint, such as the mesh peer a message came from.
+     *
+     * @param received The message to be acknowledged.
+     * @param address the destination address
+     * @param port the destination port
+     * @throws IOException if an error occurs while sending the message
+     * @see #sendMessageTo(String, InetAddress, int)
+     */
+    public void sendAckTo(Payload received, InetAddress address, int port) throws IOException {
+        String prefix = S_ACK.token() + " " + received.getMessageId() + " " + received.getSessionDiscriminator() + " ";
+        String echoed = received.getSemaphore() == S_FRAG ? fragmentHeader(received) : received.getContent();
+        int maxChars = (state.getSendLimit() - 4 - prefix.length()) / 3; // UTF-8 needs at most 3 bytes per char
+        if (echoed.length() > maxChars) {
+            // a reassembled message is acknowledged in one datagram, with its beginning
+            int cut = Math.max(0, maxChars);
+            if (cut > 0 && Character.isHighSurrogate(echoed.charAt(cut - 1))) {
+                cut--;
+            }
+            echoed = echoed.substring(0, cut);
+        }
+        sendMessageTo(prefix + echoed, address, port);
+    }
+
+    /**
+     * Returns the {@code |^~FRAG <key> <index> <count>} header of a fragment,
+     * which is all an ACK of a fragment echoes, as hubs do.
+     */
+    private static String fragmentHeader(Payload fragment) {
+        int end = fragment.fieldEnd(0);
+        for (int field = 0; field < 3; field++) {
+            end = fragment.fieldEnd(fragment.fieldStart(end));
+        }
+        return fragment.text(0, end);
     }
 
     /**
@@ -184,10 +419,175 @@ public class M4TChatProgram implements Runnable {
      * @see #sendMessage(String)
      */
     public void sendSalve() throws IOException {
-        String message = S_SALVE.token() + state.getOurIdentityToken();
+        String message = S_SALVE.token() + " " + state.getOurIdentityToken() + " mtu=" + state.getBufferSize()
+                + errorCorrector.advertisement();
         sendMessage(message);
     }
 
+    /**
+     * Joins a hub's multicast group and starts receiving room traffic from it.
+     * <p>
+     * Group traffic is processed exactly like unicast traffic, except that frames
+     * stamped with our own session discriminator are our own messages echoed back
+     * by the group and are dropped. Unicast reception continues regardless.
+     * </p>
+     *
+     * @param group the multicast group address announced by the hub
+     * @param port the port the hub publishes to
+     * @return {@code true} if the group was joined
+     */
+    public boolean joinMulticastGroup(InetAddress group, int port) {
+        if (group.equals(state.getMulticastGroup())) {
+            return true; // re-announced after another SALVE
+        }
+        try {
+            MulticastSocket socket = new MulticastSocket(port);
+            socket.joinGroup(new InetSocketAddress(group, 0), null);
+            MulticastSocket previous = state.getMulticastSocket();
+            state.setMulticastSocket(socket);
+            state.setMulticastGroup(group);
+            if (previous != null) {
+                previous.close();
+            }
+            startMulticastReceiverThread(socket);
+            return true;
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName())
+                  .log(System.Logger.Level.WARNING, "Could not join multicast group; staying on unicast", ex);
+            return false;
+        }
+    }
+
+    /**
+     * Leaves the joined multicast group, if any. Room traffic then only arrives
+     * over unicast.
+     */
+    public void leaveMulticastGroup() {
+        MulticastSocket socket = state.getMulticastSocket();
+        state.setMulticastSocket(null);
+        state.setMulticastGroup(null);
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Offers the hub a shared-memory link if it runs on this machine, shared
+     * memory is enabled and no link is up yet. Frames keep going over UDP
+     * until the hub accepts with {@code |^~SHMOK}.
+     *
+     * @throws IOException if the offer cannot be sent
+     */
+    public void offerSharedMemory() throws IOException {
+        if (!state.isSharedMemoryEnabled() || state.getSharedMemoryLink() != null
+                || !SharedMemoryLink.isSupported() || !isLocal(state.getTheirAddress())) {
+            return;
+        }
+        SharedMemoryLink link;
+        try {
+            link = SharedMemoryLink.create();
+        } catch (IOException | RuntimeException ex) {
+            System.getLogger(M4TChatProgram.class.getName())
+                  .log(System.Logger.Level.WARNING, "Could not create a shared-memory link; staying on UDP", ex);
+            return;
+        }
+        state.setSharedMemoryLink(link);
+        startSharedMemoryReceiverThread(link);
+        sendMessage(S_SHM.token() + " " + link.getPath());
+    }
+
+    /**
+     * Tells the hub we are leaving our shared-memory link, if any, and removes it.
+     */
+    public void detachSharedMemory() {
+        SharedMemoryLink link = state.getSharedMemoryLink();
+        if (link == null) {
+            return;
+        }
+        if (link.isAttached()) {
+            try {
+                sendMessage(S_SHMBYE.token()); // through the ring, so it follows everything sent before it
+            } catch (IOException ex) {
+                System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+        state.setSharedMemoryLink(null);
+        link.close();
+    }
+
+    /**
+     * Retargets this program from its hub to a peer that the hub introduced.
+     * The hub is remembered so that {@link #returnToHub()} can go back.
+     *
+     * @param address the peer's address
+     * @param port the peer's port
+     */
+    public void switchToDirectPeer(InetAddress address, int port) {
+        if (state.getHubAddress() == null) {
+            state.setHubAddress(state.getTheirAddress());
+            state.setHubPort(state.getTheirPort());
+        }
+        detachSharedMemory();
+        leaveMulticastGroup();
+        state.setTheirAddress(address);
+        state.setTheirPort(port);
+        state.setSessionDiscriminator((short) 0); // discriminators are hub-assigned
+        state.setPeerBufferSize(0);
+        state.setProbedBufferSize(0);
+        resetOrdering();
+        errorCorrector.reset();
+        keepAlive.reset();
+        linkMonitor.reset();
+    }
+
+    /**
+     * Retargets this program back to the hub it left for a direct link, and
+     * greets the hub again.
+     *
+     * @return {@code false} if there is no hub to return to
+     * @throws IOException if the greeting cannot be sent
+     */
+    public boolean returnToHub() throws IOException {
+        InetAddress hub = state.getHubAddress();
+        if (hub == null) {
+            return false;
+        }
+        state.setTheirAddress(hub);
+        state.setTheirPort(state.getHubPort());
+        state.setHubAddress(null);
+        state.setPeerBufferSize(0);
+        state.setProbedBufferSize(0);
+        resetOrdering();
+        errorCorrector.reset();
+        keepAlive.reset();
+        linkMonitor.reset();
+        sendSalve();
+        return true;
+    }
+
+    /**
+     * Retargets this program to the hub process a front door assigned us to,
+     * and greets that hub.
+     *
+     * @param address the assigned hub's address
+     * @param port the assigned hub's port
+     * @throws IOException if the greeting cannot be sent
+     */
+    public void redirectTo(InetAddress address, int port) throws IOException {
+        detachSharedMemory();
+        leaveMulticastGroup();
+        state.setTheirAddress(address);
+        state.setTheirPort(port);
+        state.setSessionDiscriminator((short) 0); // discriminators are hub-assigned
+        state.setPeerBufferSize(0);
+        state.setProbedBufferSize(0);
+        resetOrdering();
+        errorCorrector.reset();
+        keepAlive.reset();
+        linkMonitor.reset();
+        sendSalve();
+    }
+
     /**
      * Triggers a shutdown. For graceful shutdowns, the provided status code must be zero.
      *
@@ -195,14 +595,15 @@ public class M4TChatProgram implements Runnable {
      */
     public void shutdown(int status) {
         running = false;
-        if (kaThread != null)
-            kaThread.interrupt();
+        keepAlive.stop();
         try {
             if (state.getOurSocket() != null && !state.getOurSocket().isClosed()) {
                 state.getOurSocket().close();
             }
         } catch (Exception ignored) {
         }
+        leaveMulticastGroup();
+        detachSharedMemory();
         userInterface.handleShutdown();
         System.exit(status);
     }
@@ -212,27 +613,40 @@ public class M4TChatProgram implements Runnable {
     private void startReceiverThread() {
         running = true;
         new Thread(() -> {
-            byte[] buffer = new byte[state.getBufferSize()];
+            // reused for every datagram. a keep-alive is absorbed right here without allocating; any other
+            // datagram is copied out once, into the array that both its Payload and FEC keep
+            DatagramChannel channel = state.getOurSocket().getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(state.getBufferSize());
             try {
                 sendSalve();
-                kaThread = KeepAliveTransmitter.start(this);
+                keepAlive.start();
                 while (running) {
-                    Arrays.fill(buffer, (byte) 0);
-                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                    state.getOurSocket().receive(packet);
-
-                    Payload received = Payload.fromBytes(buffer, state.getBufferSize());
-                    state.setLastReceivedTransmissionTime(System.currentTimeMillis());
-                    if (msgIdStore.contains(received.getMessageId())) {
-                        continue;
-                    } else {
-                        msgIdStore.push(received.getMessageId());
+                    buffer.clear();
+                    SocketAddress from = channel.receive(buffer);
+                    buffer.flip();
+                    if (buffer.remaining() < 4) {
+                        continue; // no room for a header
                     }
-                    boolean shouldDisplayMessage = semaphoreHandler.handle(received);
-                    if (shouldDisplayMessage) {
-                        sendAck(received);
-                        displayMessage(received);
+                    PeerMesh.Peer peer = peerMesh.lookup(from);
+                    if (peer == null && isKeepAlive(buffer)) {
+                        if (!peerMesh.isActive()) {
+                            state.setLastReceivedTransmissionTime(System.currentTimeMillis());
+                        }
+                        continue; // never covered by FEC, and dispatch would ignore it
                     }
+                    byte[] frame = new byte[buffer.remaining()];
+                    buffer.get(frame);
+                    if (errorCorrector.intercept(frame)) {
+                        continue; // parity; whatever it rebuilt was processed already
+                    }
+
+                    Payload received = Payload.fromFrame(frame);
+                    if (peer != null) {
+                        processMeshPayload(peer, received);
+                    } else if (!peerMesh.isActive()) {
+                        processPayload(received);
+                    } // a mesh only listens to its peers
+
                 }
             } catch (IOException ex) {
                 if (running) {
@@ -245,6 +659,187 @@ public class M4TChatProgram implements Runnable {
         }).start();
     }
 
+    private void startMulticastReceiverThread(MulticastSocket socket) {
+        new Thread(() -> {
+            byte[] buffer = new byte[state.getBufferSize()];
+            try {
+                while (running && !socket.isClosed()) {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    socket.receive(packet);
+
+                    Payload received = Payload.fromBytes(buffer, packet.getLength());
+                    short ours = state.getSessionDiscriminator();
+                    if (ours != 0 && received.getSessionDiscriminator() == ours) {
+                        continue; // our own message, looped back by the group
+                    }
+                    processPayload(received);
+                }
+            } catch (IOException ex) {
+                if (running && !socket.isClosed()) {
+                    System.err.println("Multicast receiver thread encountered an IO error: " + ex.getMessage());
+                }
+            }
+        }, "MulticastReceiverThread").start();
+    }
+
+    private void startSharedMemoryReceiverThread(SharedMemoryLink link) {
+        Thread receiver = new Thread(() -> {
+            int idlePolls = 0;
+            long parkNanos = SharedMemoryLink.PARK_NANOS;
+            while (running && !link.isClosed()) {
+                byte[] frame = link.poll();
+                if (frame == null) {
+                    // spin while traffic flows so that latency stays in microseconds, park once idle, longer and longer
+                    if (++idlePolls >= SharedMemoryLink.SPIN_LIMIT) {
+                        LockSupport.parkNanos(parkNanos);
+                        parkNanos = Math.min(parkNanos * 2, SharedMemoryLink.MAX_PARK_NANOS);
+                    } else if (SharedMemoryLink.YIELD_WHILE_SPINNING) {
+                        Thread.yield();
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    continue;
+                }
+                idlePolls = 0;
+                parkNanos = SharedMemoryLink.PARK_NANOS;
+                if (frame.length < 4) {
+                    continue; // no room for a header
+                }
+                try {
+                    processPayload(Payload.fromBytes(frame, frame.length));
+                } catch (IOException ex) {
+                    System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+            }
+        }, "SharedMemoryReceiverThread");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private static boolean isLocal(InetAddress address) {
+        try {
+            return address != null
+                    && (address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null);
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Processes a frame that forward error correction rebuilt, exactly as if it
+     * had been received.
+     *
+     * @param frame the rebuilt frame, header included
+     * @throws IOException if a reply cannot be sent
+     */
+    private static boolean isKeepAlive(ByteBuffer datagram) {
+        if (datagram.remaining() != 4 + KEEP_ALIVE.length) {
+            return false;
+        }
+        for (int i = 0; i < KEEP_ALIVE.length; i++) {
+            if (datagram.get(datagram.position() + 4 + i) != KEEP_ALIVE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void processRebuilt(byte[] frame) throws IOException {
+        processPayload(Payload.fromBytes(frame, frame.length));
+    }
+
+    /**
+     * Deduplicates, dispatches and displays one received payload. Shared by the
+     * unicast and multicast receiver threads.
+     */
+    private synchronized void processPayload(Payload received) throws IOException {
+        state.setLastReceivedTransmissionTime(System.currentTimeMillis());
+        if (msgIdStore.contains(received.getMessageId())) {
+            Semaphore semaphore = received.getSemaphore();
+            if (semaphore == null || semaphore == S_FRAG || (state.getHubAddress() != null && semaphore == S_SEQ)) {
+                sendAck(received); // a retransmission; our first ACK was probably lost
+            }
+            return;
+        }
+        msgIdStore.push(received.getMessageId());
+        if (received.getSemaphore() == S_SEQ) {
+            received = sequenceTracker.unwrap(received);
+            if (received == null) {
+                return; // duplicate
+            }
+            for (Payload ready : reorderBuffer.offer(received)) {
+                dispatch(ready);
+            }
+            armReorderTimer();
+            return;
+        }
+        dispatch(received);
+    }
+
+    private synchronized void processMeshPayload(PeerMesh.Peer peer, Payload received) throws IOException {
+        state.setLastReceivedTransmissionTime(System.currentTimeMillis());
+        peerMesh.handle(peer, received);
+    }
+
+    /**
+     * Forgets the sequence state of the current hub or peer, first delivering
+     * anything the reorder buffer still holds.
+     */
+    public synchronized void resetOrdering() {
+        sequenceTracker.reset();
+        try {
+            for (Payload ready : reorderBuffer.reset()) {
+                dispatch(ready);
+            }
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+    }
+
+    private void armReorderTimer() {
+        long delay = reorderBuffer.nanosUntilNextExpiry();
+        if (delay >= 0 && (reorderTimer == null || reorderTimer.isDone())) {
+            reorderTimer = scheduler.schedule(this::releaseReordered, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void releaseReordered() {
+        try {
+            for (Payload ready : reorderBuffer.releaseExpired()) {
+                dispatch(ready);
+            }
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+        reorderTimer = null;
+        armReorderTimer();
+    }
+
+    /**
+     * Reassembles, dispatches and displays a payload that is due, in order.
+     */
+    private void dispatch(Payload received) throws IOException {
+        if (received.getSequence() >= 0 && received.contentLength() == 0) {
+            return; // gap filler
+        }
+        boolean assembled = false;
+        while (received.getSemaphore() == S_FRAG) { // a loop, in case a relay fragmented a fragment
+            sendAck(received); // every fragment is acknowledged, since reliable mode tracks every fragment
+            received = fragmentAssembler.accept(received);
+            if (received == null) {
+                return; // more fragments to come
+            }
+            assembled = true;
+        }
+        boolean shouldDisplayMessage = semaphoreHandler.handle(received);
+        if (shouldDisplayMessage) {
+            if (!assembled) {
+                sendAck(received); // its fragments were acknowledged already
+            }
+            displayMessage(received);
+        }
+    }
+
     private void displayMessage(Payload received) {
         String msg = received.getContent();
         if (msg.isEmpty()) {
@@ -1,8 +1,13 @@
 package com.github.hammercroft.m4tchatprogram;
 
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
 import java.util.concurrent.Callable;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
 
 // TODO see https://picocli.info/ when you get to implementing launch params
 
@@ -23,6 +28,30 @@ import picocli.CommandLine.Command;
 )
 public class M4TChatProgramMain implements Callable<Integer> {
 
+    @Option(names = "--no-multicast", description = "Never join a hub's multicast group; receive room traffic over unicast only.")
+    boolean noMulticast;
+
+    @Option(names = "--max-payload", description = "Largest datagram payload, in bytes, to advertise and receive (default: ${DEFAULT-VALUE}). Around 1400 suits most LANs.")
+    int maxPayload = M4TChatProgram.DEFAULT_BUFFER_SIZE;
+
+    @Option(names = "--probe-mtu", description = "After each handshake, confirm the negotiated payload size with padded probes before using it.")
+    boolean probeMtu;
+
+    @Option(names = "--shm", description = "Reach a hub on this machine through shared memory in /dev/shm instead of UDP.")
+    boolean sharedMemory;
+
+    @Option(names = "--fec", split = ",", paramLabel = "K,M", description = "Follow every K datagrams with M parity datagrams, so up to M losses per group are rebuilt without a retransmit. K is at most 16.")
+    int[] fec;
+
+    @Option(names = "--reliable", description = "Retransmit chat messages until they are acknowledged, with a timeout adapted to the measured round trip, and report the ones that never were.")
+    boolean reliable;
+
+    @Option(names = "--reorder-budget-ms", description = "Longest a message that arrived out of order is held back for the ones before it; 0 shows messages as they arrive (default: ${DEFAULT-VALUE}).")
+    long reorderBudgetMillis = 50;
+
+    @Option(names = "--peer", paramLabel = "HOST:PORT", description = "Chat with this peer directly, without a hub. Repeat for a small group; every message is sent to all peers.")
+    List<String> peers;
+
     /**
      * Executes the main program workflow.
      * <p>
@@ -36,6 +65,35 @@ public class M4TChatProgramMain implements Callable<Integer> {
     public Integer call() {
         M4TChatProgram app = new M4TChatProgram();
         app.state = new ProgramState();
+        app.state.setMulticastEnabled(!noMulticast);
+        app.state.setBufferSize(maxPayload);
+        app.state.setMtuProbingEnabled(probeMtu);
+        app.state.setSharedMemoryEnabled(sharedMemory);
+        app.state.setReliableEnabled(reliable);
+        app.state.setReorderBudgetMillis(Math.max(0, reorderBudgetMillis));
+        if (fec != null) {
+            if (fec.length != 2 || fec[0] < 1 || fec[1] < 1) {
+                System.err.println("--fec takes two positive numbers, e.g. --fec=4,1");
+                return 2;
+            }
+            app.state.setFecDataFrames(Math.min(fec[0], ForwardErrorCorrector.MAX_GROUP));
+            app.state.setFecParityFrames(Math.min(fec[1], app.state.getFecDataFrames()));
+        }
+        if (peers != null) {
+            for (String peer : peers) {
+                int colon = peer.lastIndexOf(':');
+                try {
+                    InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(peer.substring(0, colon)),
+                            Integer.parseInt(peer.substring(colon + 1)));
+                    if (!app.peerMesh.add(address)) {
+                        System.err.println("Ignoring --peer " + peer + ": a duplicate, or more than " + PeerMesh.MAX_PEERS + " peers");
+                    }
+                } catch (UnknownHostException | IllegalArgumentException | StringIndexOutOfBoundsException e) {
+                    System.err.println("--peer takes a host and a port, e.g. --peer=192.168.1.20:5000");
+                    return 2;
+                }
+            }
+        }
         app.userInterface = new JLineUserInterface(app);
         app.run();
         app.waitUntilStopped(); // block here until shutdown
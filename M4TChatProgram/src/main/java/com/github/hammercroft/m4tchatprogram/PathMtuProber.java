@@ -0,0 +1,89 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Confirms how large a datagram actually survives the path to the peer.
+ * <p>
+ * After a handshake advertises a payload size above the scheme default, a
+ * padded {@code |^~PMTU} probe is sent for each candidate size between the
+ * default and the advertised size. The peer answers each probe it receives
+ * with an equally padded {@code |^~PMTUOK}, so a reply proves both directions.
+ * Once the probe window closes, the largest confirmed size becomes the send
+ * limit and is announced to the peer with {@code |^~MTU}.
+ * </p>
+ * <p>
+ * Java cannot set the don't-fragment bit, so probes detect paths that drop
+ * oversized or fragmented datagrams rather than the exact link MTU.
+ * </p>
+ */
+public class PathMtuProber {
+
+    /** How long replies are awaited after the probes are sent. */
+    public static final long PROBE_WINDOW_MS = 2_000;
+
+    /** Distance between candidate probe sizes. */
+    public static final int PROBE_STEP = 200;
+
+    private final M4TChatProgram chatProgram;
+    private final AtomicInteger bestConfirmed = new AtomicInteger();
+    private volatile boolean probing = false;
+
+    /**
+     * Creates a prober for the given chat program.
+     *
+     * @param chatProgram the chat program whose peer is probed
+     */
+    public PathMtuProber(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Starts a probe round, unless one is running or there is nothing above the
+     * scheme default to confirm.
+     *
+     * @throws IOException if a probe cannot be sent
+     */
+    public void start() throws IOException {
+        ProgramState state = chatProgram.state;
+        int ceiling = Math.min(state.getBufferSize(),
+                state.getPeerBufferSize() == 0 ? M4TChatProgram.DEFAULT_BUFFER_SIZE : state.getPeerBufferSize());
+        if (probing || ceiling <= M4TChatProgram.DEFAULT_BUFFER_SIZE) {
+            return;
+        }
+        probing = true;
+        bestConfirmed.set(M4TChatProgram.DEFAULT_BUFFER_SIZE);
+        for (int size = ceiling; size > M4TChatProgram.DEFAULT_BUFFER_SIZE; size -= PROBE_STEP) {
+            chatProgram.sendPadded(S_PMTU.token() + " " + size + " ", size);
+        }
+        chatProgram.scheduler.schedule(this::finish, PROBE_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a probe reply.
+     *
+     * @param size the probed payload size the peer confirmed
+     */
+    public void acknowledge(int size) {
+        if (probing) {
+            bestConfirmed.accumulateAndGet(size, Math::max);
+        }
+    }
+
+    private void finish() {
+        chatProgram.state.setProbedBufferSize(bestConfirmed.get());
+        probing = false;
+        int limit = chatProgram.state.getSendLimit();
+        try {
+            chatProgram.sendMessage(S_MTU.token() + " " + limit);
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+        chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "MTU_NEGOTIATED", "Size", limit));
+    }
+}
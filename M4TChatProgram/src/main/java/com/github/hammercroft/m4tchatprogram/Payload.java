@@ -7,6 +7,15 @@ import java.nio.charset.StandardCharsets;
  * Represents a M4T network payload consisting of a message ID, session discriminator, and string content.
  * <p>
  * Provides utilities to convert to/from raw byte arrays for transmission.
+ * </p>
+ * <p>
+ * A received payload keeps its content as UTF-8 bytes and decodes it only when
+ * {@link #getContent()} is first called, which happens for chat alone: control
+ * messages are recognised with {@link #getSemaphore()} and their fields are
+ * read from the bytes in place, with {@link #fieldStart(int)},
+ * {@link #fieldEnd(int)} and {@link #parseNumber(int, int)}. Positions are
+ * byte offsets into the content.
+ * </p>
  */
 public class Payload {
 
@@ -16,8 +25,19 @@ public class Payload {
     /** The session discriminator of this payload. */
     private final short sessionDiscriminator;
 
-    /** The UTF-8 string content of this payload. */
-    private final String content;
+    /** The UTF-8 content of this payload, within {@code data}. */
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    /** The semaphore the content starts with, or {@code null} for chat. */
+    private final Semaphore semaphore;
+
+    /** The content as a string; decoded on first use. Racing decodes yield equal strings. */
+    private String content;
+
+    /** The sequence number of this payload within its session, or {@code -1} if unsequenced. */
+    private final long sequence;
 
     /**
      * Creates a new Payload instance.
@@ -27,9 +47,42 @@ public class Payload {
      * @param content the UTF-8 content of the message
      */
     public Payload(short messageId, short sessionDiscriminator, String content) {
+        this(messageId, sessionDiscriminator, content, -1);
+    }
+
+    /**
+     * Creates a new Payload instance that was carried in a {@code |^~SEQ}
+     * envelope.
+     *
+     * @param messageId the identifier for this message
+     * @param sessionDiscriminator the session identifier
+     * @param content the UTF-8 content of the message
+     * @param sequence the sequence number from the envelope, or {@code -1}
+     */
+    public Payload(short messageId, short sessionDiscriminator, String content, long sequence) {
+        this(messageId, sessionDiscriminator, content.getBytes(StandardCharsets.UTF_8), 0, -1, sequence);
+        this.content = content;
+    }
+
+    /**
+     * Creates a Payload over UTF-8 content that is not copied; the array must
+     * not change afterwards.
+     *
+     * @param messageId the identifier for this message
+     * @param sessionDiscriminator the session identifier
+     * @param data the array holding the content
+     * @param offset where the content starts
+     * @param length the content length in bytes, or {@code -1} for the rest of the array
+     * @param sequence the sequence number from the envelope, or {@code -1}
+     */
+    Payload(short messageId, short sessionDiscriminator, byte[] data, int offset, int length, long sequence) {
         this.messageId = messageId;
         this.sessionDiscriminator = sessionDiscriminator;
-        this.content = content;
+        this.data = data;
+        this.offset = offset;
+        this.length = length < 0 ? data.length - offset : length;
+        this.semaphore = Semaphore.classify(data, offset, this.length);
+        this.sequence = sequence;
     }
 
     /**
@@ -56,7 +109,180 @@ public class Payload {
      * @return the message content
      */
     public String getContent() {
-        return content;
+        String decoded = content;
+        if (decoded == null) {
+            decoded = new String(data, offset, length, StandardCharsets.UTF_8); // malformed input becomes U+FFFD
+            content = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Returns the semaphore this payload's content starts with.
+     *
+     * @return the semaphore, or {@code null} if the content is chat
+     */
+    public Semaphore getSemaphore() {
+        return semaphore;
+    }
+
+    /**
+     * Returns the length of the content in bytes.
+     *
+     * @return the content length
+     */
+    public int contentLength() {
+        return length;
+    }
+
+    /**
+     * Skips whitespace, as {@link String#trim()} would.
+     *
+     * @param from a position in the content
+     * @return the first position at or after {@code from} that is not
+     *         whitespace, or {@link #contentLength()}
+     */
+    int fieldStart(int from) {
+        while (from < length && (data[offset + from] & 0xFF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Finds the end of the space-separated field starting at a position.
+     *
+     * @param from the field's first position
+     * @return the position of the next whitespace, or {@link #contentLength()}
+     */
+    int fieldEnd(int from) {
+        while (from < length && (data[offset + from] & 0xFF) > ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Finds the end of the content without trailing whitespace.
+     *
+     * @param from the position not to go back past
+     * @return the position after the last non-whitespace byte, at least {@code from}
+     */
+    int trimmedEnd(int from) {
+        int end = length;
+        while (end > from && (data[offset + end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Parses a decimal number, optionally negative, from the content.
+     *
+     * @param from the first position of the number
+     * @param to the position after it
+     * @return the number, or {@link Long#MIN_VALUE} if the range is empty, is
+     *         not a number, or overflows
+     */
+    long parseNumber(int from, int to) {
+        boolean negative = from < to && data[offset + from] == '-';
+        int i = negative ? from + 1 : from;
+        if (i >= to || to - i > 18) {
+            return Long.MIN_VALUE; // 18 digits cannot overflow a long
+        }
+        long value = 0;
+        for (; i < to; i++) {
+            int digit = data[offset + i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Tells whether the content has the given ASCII text at a position.
+     *
+     * @param at the position
+     * @param ascii the text to look for
+     * @return {@code true} if the bytes at {@code at} spell {@code ascii}
+     */
+    boolean regionMatches(int at, String ascii) {
+        if (at < 0 || at + ascii.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (data[offset + at + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds an ASCII character in part of the content.
+     *
+     * @param c the character
+     * @param from the first position to look at
+     * @param to the position to stop before
+     * @return its position, or {@code -1}
+     */
+    int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (data[offset + i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes part of the content, for a field that is needed as a string,
+     * such as an identity token or a host name.
+     *
+     * @param from the first position
+     * @param to the position after the last
+     * @return the decoded text
+     */
+    String text(int from, int to) {
+        return new String(data, offset + from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies part of the content.
+     *
+     * @param from the first position
+     * @param to the position after the last
+     * @return the bytes
+     */
+    byte[] copyBytes(int from, int to) {
+        byte[] copy = new byte[to - from];
+        System.arraycopy(data, offset + from, copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * Returns a payload whose content is the rest of this one's, sharing its
+     * bytes, as when a {@code |^~SEQ} envelope is taken off.
+     *
+     * @param from the position the inner content starts at
+     * @param sequence the sequence number of the inner payload
+     * @return the inner payload, with this payload's message ID and session
+     *         discriminator
+     */
+    Payload tail(int from, long sequence) {
+        return new Payload(messageId, sessionDiscriminator, data, offset + from, length - from, sequence);
+    }
+
+    /**
+     * Returns the sequence number this payload was sent under, if any. Hubs
+     * number room broadcasts, and peers on a direct link number chat.
+     *
+     * @return the sequence number, or {@code -1} if unsequenced
+     */
+    public long getSequence() {
+        return sequence;
     }
 
     /**
@@ -75,14 +301,27 @@ public class Payload {
         // Session Discriminator (BE 2 bytes)
         short sessionDiscriminator = buffer.getShort();
         
-        // Content (remaining bytes)
+        // Content (remaining bytes), decoded only if it turns out to be chat
         // Total overhead for short fields is 4 bytes (2 for ID + 2 for discriminator)
         byte[] contentBytes = new byte[length - 4];
         buffer.get(contentBytes);
 
-        String content = new String(contentBytes, StandardCharsets.UTF_8);
+        return new Payload(messageId, sessionDiscriminator, contentBytes, 0, contentBytes.length, -1);
+    }
 
-        return new Payload(messageId, sessionDiscriminator, content);
+    /**
+     * Creates a Payload over a whole received frame, header included, without
+     * copying it; the frame must not change afterwards. Nothing is decoded
+     * until {@link #getContent()} is called, so control messages never become
+     * strings.
+     *
+     * @param frame the datagram, at least 4 bytes
+     * @return a new Payload instance containing the parsed message ID, session discriminator, and content
+     */
+    public static Payload fromFrame(byte[] frame) {
+        short messageId = (short) (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF));
+        short sessionDiscriminator = (short) (((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+        return new Payload(messageId, sessionDiscriminator, frame, 4, frame.length - 4, -1);
     }
 
     /**
@@ -91,14 +330,12 @@ public class Payload {
      * @return a byte array containing the message ID, session discriminator, followed by UTF-8 encoded content
      */
     public byte[] toBytes() {
-        byte[] contentBytes = content.getBytes(StandardCharsets.UTF_8);
-        
         // Total size = 2 bytes (ID) + 2 bytes (Session) + content length
-        ByteBuffer buffer = ByteBuffer.allocate(4 + contentBytes.length);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length);
 
         buffer.putShort(messageId);
         buffer.putShort(sessionDiscriminator);
-        buffer.put(contentBytes);
+        buffer.put(data, offset, length);
 
         return buffer.array();
     }
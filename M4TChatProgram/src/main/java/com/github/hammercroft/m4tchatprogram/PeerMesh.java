@@ -0,0 +1,245 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Talks to several peers at once without a hub, for small serverless groups.
+ * <p>
+ * With one or more {@code --peer} options, every message we send is encoded
+ * once and sent to each peer in the table from our one socket. Every peer has
+ * its own deduplication state, so message IDs drawn by different peers never
+ * shadow each other, and its own session discriminator: in mesh mode each
+ * participant picks a random one, and a peer whose discriminator changes has
+ * restarted, so what we remember of it is forgotten. Keep-alives double as
+ * liveness checks; a peer not heard from for {@link #SILENCE_TIMEOUT_MS} is
+ * reported offline until it is heard again.
+ * </p>
+ * <p>
+ * Replies to a peer's SALVE and chat go back to that peer only. Hub
+ * semaphores from peers are ignored. Frames are kept within the standard
+ * {@link M4TChatProgram#DEFAULT_BUFFER_SIZE}, which every peer accepts.
+ * </p>
+ */
+public class PeerMesh {
+
+    /** Largest number of peers in the table. */
+    public static final int MAX_PEERS = 32;
+
+    /** Silence after which a peer is reported offline; keep-alives arrive every 3 seconds. */
+    public static final long SILENCE_TIMEOUT_MS = 10_000;
+
+    private final M4TChatProgram chatProgram;
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    private final Map<SocketAddress, Peer> byAddress = new ConcurrentHashMap<>();
+
+    /**
+     * One participant of the mesh.
+     */
+    static final class Peer {
+        final InetSocketAddress address;
+        final String label;
+        final TransientMessageStore seen = new TransientMessageStore(); // guarded by the chat program
+        volatile short sessionDiscriminator = 0;
+        volatile long lastHeardNanos = 0;
+        volatile boolean online = false;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+            this.label = address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * Creates an empty peer table for the given chat program.
+     *
+     * @param chatProgram the chat program whose socket the mesh shares
+     */
+    public PeerMesh(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Adds a peer to the table.
+     *
+     * @param address the peer's address and port
+     * @return {@code false} if the table is full or already has the peer
+     */
+    public boolean add(InetSocketAddress address) {
+        if (peers.size() >= MAX_PEERS || byAddress.containsKey(address)) {
+            return false;
+        }
+        Peer peer = new Peer(address);
+        byAddress.put(address, peer);
+        peers.add(peer);
+        return true;
+    }
+
+    /**
+     * Tells whether mesh mode is on, i.e. whether any peer was added.
+     *
+     * @return {@code true} if the table has peers
+     */
+    public boolean isActive() {
+        return !peers.isEmpty();
+    }
+
+    /**
+     * Returns the first peer added, which stands in as the program's target.
+     *
+     * @return the first peer's address, or {@code null} if the table is empty
+     */
+    public InetSocketAddress firstPeer() {
+        return peers.isEmpty() ? null : peers.get(0).address;
+    }
+
+    /**
+     * Picks our random session discriminator and starts the liveness checks.
+     */
+    public void start() {
+        chatProgram.state.setSessionDiscriminator((short) ThreadLocalRandom.current().nextInt(1, 65536));
+        chatProgram.scheduler.scheduleWithFixedDelay(this::checkLiveness,
+                SILENCE_TIMEOUT_MS, SILENCE_TIMEOUT_MS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up the peer a datagram came from.
+     *
+     * @param from the datagram's source
+     * @return the peer, or {@code null} if the source is not in the table
+     */
+    Peer lookup(SocketAddress from) {
+        return from == null ? null : byAddress.get(from);
+    }
+
+    /**
+     * Sends a message to every peer. The frame is encoded once; messages that
+     * do not fit one datagram are sent as fragments.
+     *
+     * @param message the message to send
+     * @return the transient message ID of the (first) frame, or {@code 0} if
+     *         the message was too long to send at all
+     * @throws IOException if an error occurs while sending
+     */
+    public short sendToAll(String message) throws IOException {
+        byte[] content = message.getBytes(StandardCharsets.UTF_8);
+        if (content.length + 4 > M4TChatProgram.DEFAULT_BUFFER_SIZE) {
+            List<String> fragments = FragmentAssembler.split(content, M4TChatProgram.DEFAULT_BUFFER_SIZE);
+            if (fragments.isEmpty()) {
+                chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "MESSAGE_TOO_LONG",
+                        "Fragments", FragmentAssembler.MAX_FRAGMENTS));
+                return 0; // nothing was sent
+            }
+            short firstId = 0;
+            for (int i = 0; i < fragments.size(); i++) {
+                short id = sendToAll(fragments.get(i));
+                firstId = i == 0 ? id : firstId;
+            }
+            return firstId;
+        }
+        short randomId = (short) ThreadLocalRandom.current().nextInt(0, 65536);
+        byte[] frame = new Payload(randomId, chatProgram.state.getSessionDiscriminator(), message).toBytes();
+        DatagramPacket packet = new DatagramPacket(frame, frame.length);
+        for (Peer peer : peers) {
+            packet.setSocketAddress(peer.address);
+            chatProgram.state.getOurSocket().send(packet);
+        }
+        chatProgram.keepAlive.noteSent();
+        return randomId;
+    }
+
+    /**
+     * Deduplicates, answers and displays a payload received from a peer.
+     *
+     * @param peer the peer the payload came from
+     * @param received the received payload
+     * @throws IOException if a reply cannot be sent
+     */
+    void handle(Peer peer, Payload received) throws IOException {
+        heard(peer, received.getSessionDiscriminator());
+        if (peer.seen.contains(received.getMessageId())) {
+            if (received.getSemaphore() == null) {
+                chatProgram.sendAckTo(received, peer.address.getAddress(), peer.address.getPort());
+            }
+            return;
+        }
+        peer.seen.push(received.getMessageId());
+
+        if (received.getSemaphore() == S_FRAG) {
+            received = chatProgram.fragmentAssembler.accept(received);
+            if (received == null) {
+                return; // more fragments to come
+            }
+        }
+        if (received.getSemaphore() == S_E2SALVE) {
+            return; // its arrival already marked the peer online
+        }
+        if (received.getSemaphore() == S_SALVE) {
+            int from = received.fieldStart(S_SALVE.length());
+            chatProgram.sendMessageTo(S_E2SALVE.token() + " " + received.text(from, received.fieldEnd(from)) + " "
+                    + chatProgram.state.getOurIdentityToken() + " mtu=" + M4TChatProgram.DEFAULT_BUFFER_SIZE,
+                    peer.address.getAddress(), peer.address.getPort());
+            return;
+        }
+        if (received.getSemaphore() != null) {
+            return; // keep-alives, ACKs, and hub semaphores that have no meaning in a mesh
+        }
+        chatProgram.sendAckTo(received, peer.address.getAddress(), peer.address.getPort());
+        String content = received.getContent();
+        String text = content.isEmpty() || content.charAt(content.length() - 1) != '\n' ? content + '\n' : content;
+        chatProgram.userInterface.handleRecievedMessage(received.getMessageId(), "[" + peer.label + "]: " + text);
+    }
+
+    /**
+     * Describes the peer table for the {@code .PEERS} command.
+     *
+     * @return one line per peer
+     */
+    public String describe() {
+        StringBuilder sb = new StringBuilder("Mesh peers:\n");
+        long now = System.nanoTime();
+        for (Peer peer : peers) {
+            sb.append("  ").append(peer.label).append(peer.online ? "  online" : "  offline");
+            if (peer.lastHeardNanos != 0) {
+                sb.append(", heard ").append((now - peer.lastHeardNanos) / 1_000_000_000).append(" s ago");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void heard(Peer peer, short sessionDiscriminator) {
+        peer.lastHeardNanos = System.nanoTime();
+        if (peer.sessionDiscriminator != sessionDiscriminator) {
+            if (peer.sessionDiscriminator != 0) {
+                peer.seen.clear(); // the peer restarted; its message IDs start over
+            }
+            peer.sessionDiscriminator = sessionDiscriminator;
+        }
+        if (!peer.online) {
+            peer.online = true;
+            chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "MESH_PEER_ONLINE", "Peer", peer.label));
+        }
+    }
+
+    private void checkLiveness() {
+        long now = System.nanoTime();
+        for (Peer peer : peers) {
+            if (peer.online && now - peer.lastHeardNanos > SILENCE_TIMEOUT_MS * 1_000_000) {
+                peer.online = false;
+                chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "MESH_PEER_OFFLINE", "Peer", peer.label));
+            }
+        }
+    }
+}
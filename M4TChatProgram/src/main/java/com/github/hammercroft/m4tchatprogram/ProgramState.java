@@ -2,6 +2,7 @@ package com.github.hammercroft.m4tchatprogram;
 
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.MulticastSocket;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.Instant;
@@ -31,8 +32,23 @@ public class ProgramState {
     private volatile InetAddress theirAddress;
     private volatile int theirPort;
     private volatile int bufferSize;
+    private volatile int peerBufferSize = 0;
+    private volatile int probedBufferSize = 0;
+    private volatile boolean mtuProbingEnabled = false;
     private volatile short sessionDiscriminator = 0;
     private volatile long lastReceivedTransmissionTime = 0;
+    private volatile boolean multicastEnabled = true;
+    private volatile MulticastSocket multicastSocket;
+    private volatile InetAddress multicastGroup;
+    private volatile InetAddress hubAddress;
+    private volatile int hubPort;
+    private volatile boolean sharedMemoryEnabled = false;
+    private volatile SharedMemoryLink sharedMemoryLink;
+    private volatile int fecDataFrames = 0;
+    private volatile int fecParityFrames = 0;
+    private volatile boolean reliableEnabled = false;
+    private volatile long reorderBudgetMillis = 50;
+    private volatile long keepAliveIntervalMillis = KeepAliveTransmitter.BASE_INTERVAL_MS;
     
     private static final DateTimeFormatter FORMATTER =
         DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
@@ -111,6 +127,66 @@ public class ProgramState {
      */
     public void setBufferSize(int bufferSize) { this.bufferSize = bufferSize; }
 
+    /**
+     * Returns the largest payload the peer advertised it can receive.
+     *
+     * @return the peer's advertised size in bytes, or {@code 0} if it has not advertised one
+     */
+    public int getPeerBufferSize() { return peerBufferSize; }
+
+    /**
+     * Sets the largest payload the peer advertised it can receive.
+     *
+     * @param peerBufferSize the advertised size in bytes
+     */
+    public void setPeerBufferSize(int peerBufferSize) { this.peerBufferSize = peerBufferSize; }
+
+    /**
+     * Returns the largest payload confirmed by path-MTU probing.
+     *
+     * @return the probed size in bytes, or {@code 0} if no probe has completed
+     */
+    public int getProbedBufferSize() { return probedBufferSize; }
+
+    /**
+     * Sets the largest payload confirmed by path-MTU probing.
+     *
+     * @param probedBufferSize the probed size in bytes
+     */
+    public void setProbedBufferSize(int probedBufferSize) { this.probedBufferSize = probedBufferSize; }
+
+    /**
+     * Returns whether path-MTU probing runs after each completed handshake.
+     *
+     * @return {@code true} if probing is enabled
+     */
+    public boolean isMtuProbingEnabled() { return mtuProbingEnabled; }
+
+    /**
+     * Enables or disables path-MTU probing after each completed handshake.
+     *
+     * @param mtuProbingEnabled {@code true} to probe
+     */
+    public void setMtuProbingEnabled(boolean mtuProbingEnabled) { this.mtuProbingEnabled = mtuProbingEnabled; }
+
+    /**
+     * Returns the largest payload we may currently send to the peer.
+     * <p>
+     * This is the smallest of our own buffer size, the peer's advertised size
+     * (or the scheme default if it has not advertised one), and the probed size
+     * if probing has completed.
+     * </p>
+     *
+     * @return the send limit in bytes
+     */
+    public int getSendLimit() {
+        int limit = Math.min(bufferSize, peerBufferSize == 0 ? M4TChatProgram.DEFAULT_BUFFER_SIZE : peerBufferSize);
+        if (probedBufferSize != 0) {
+            limit = Math.min(limit, probedBufferSize);
+        }
+        return limit;
+    }
+
     /**
      * Returns the session discriminator value.
      * <p>
@@ -149,6 +225,174 @@ public class ProgramState {
         this.lastReceivedTransmissionTime = lastReceivedTransmissionTime;
     }
 
+    /**
+     * Returns whether this program may join a multicast group announced by a hub.
+     *
+     * @return {@code true} if multicast reception is allowed
+     */
+    public boolean isMulticastEnabled() { return multicastEnabled; }
+
+    /**
+     * Allows or forbids joining a multicast group announced by a hub.
+     *
+     * @param multicastEnabled {@code false} to always stay on unicast
+     */
+    public void setMulticastEnabled(boolean multicastEnabled) { this.multicastEnabled = multicastEnabled; }
+
+    /**
+     * Returns the socket used to receive a hub's multicast room traffic.
+     *
+     * @return the multicast socket, or {@code null} if no group was joined
+     */
+    public MulticastSocket getMulticastSocket() { return multicastSocket; }
+
+    /**
+     * Sets the socket used to receive a hub's multicast room traffic.
+     *
+     * @param multicastSocket the joined multicast socket
+     */
+    public void setMulticastSocket(MulticastSocket multicastSocket) { this.multicastSocket = multicastSocket; }
+
+    /**
+     * Returns the multicast group currently joined.
+     *
+     * @return the group address, or {@code null} if none
+     */
+    public InetAddress getMulticastGroup() { return multicastGroup; }
+
+    /**
+     * Sets the multicast group currently joined.
+     *
+     * @param multicastGroup the group address
+     */
+    public void setMulticastGroup(InetAddress multicastGroup) { this.multicastGroup = multicastGroup; }
+
+    /**
+     * Returns the hub we left after connecting directly to an introduced peer.
+     *
+     * @return the hub address, or {@code null} if we are not on a direct link
+     */
+    public InetAddress getHubAddress() { return hubAddress; }
+
+    /**
+     * Sets the hub to return to after a direct link ends.
+     *
+     * @param hubAddress the hub address, or {@code null} to forget it
+     */
+    public void setHubAddress(InetAddress hubAddress) { this.hubAddress = hubAddress; }
+
+    /**
+     * Returns the port of the hub we left after connecting directly to an introduced peer.
+     *
+     * @return the hub port
+     */
+    public int getHubPort() { return hubPort; }
+
+    /**
+     * Sets the port of the hub to return to after a direct link ends.
+     *
+     * @param hubPort the hub port
+     */
+    public void setHubPort(int hubPort) { this.hubPort = hubPort; }
+
+    /**
+     * Returns whether a hub on this machine may be reached through shared memory.
+     *
+     * @return {@code true} if shared-memory links may be offered
+     */
+    public boolean isSharedMemoryEnabled() { return sharedMemoryEnabled; }
+
+    /**
+     * Allows or forbids offering shared-memory links to hubs on this machine.
+     *
+     * @param sharedMemoryEnabled {@code true} to offer shared-memory links
+     */
+    public void setSharedMemoryEnabled(boolean sharedMemoryEnabled) { this.sharedMemoryEnabled = sharedMemoryEnabled; }
+
+    /**
+     * Returns the shared-memory link to the hub, whether offered or attached.
+     *
+     * @return the link, or {@code null} if there is none
+     */
+    public SharedMemoryLink getSharedMemoryLink() { return sharedMemoryLink; }
+
+    /**
+     * Sets the shared-memory link to the hub.
+     *
+     * @param sharedMemoryLink the link, or {@code null} to go back to UDP only
+     */
+    public void setSharedMemoryLink(SharedMemoryLink sharedMemoryLink) { this.sharedMemoryLink = sharedMemoryLink; }
+
+    /**
+     * Returns how many data frames each forward error correction group covers.
+     *
+     * @return the group size, or {@code 0} if FEC is off
+     */
+    public int getFecDataFrames() { return fecDataFrames; }
+
+    /**
+     * Sets how many data frames each forward error correction group covers.
+     *
+     * @param fecDataFrames the group size, or {@code 0} to turn FEC off
+     */
+    public void setFecDataFrames(int fecDataFrames) { this.fecDataFrames = fecDataFrames; }
+
+    /**
+     * Returns how many parity frames follow each forward error correction group.
+     *
+     * @return the parity frames per group
+     */
+    public int getFecParityFrames() { return fecParityFrames; }
+
+    /**
+     * Sets how many parity frames follow each forward error correction group.
+     *
+     * @param fecParityFrames the parity frames per group
+     */
+    public void setFecParityFrames(int fecParityFrames) { this.fecParityFrames = fecParityFrames; }
+
+    /**
+     * Returns whether chat messages are retransmitted until acknowledged.
+     *
+     * @return {@code true} in reliable mode
+     */
+    public boolean isReliableEnabled() { return reliableEnabled; }
+
+    /**
+     * Turns reliable mode on or off.
+     *
+     * @param reliableEnabled {@code true} to retransmit chat messages until acknowledged
+     */
+    public void setReliableEnabled(boolean reliableEnabled) { this.reliableEnabled = reliableEnabled; }
+
+    /**
+     * Returns how long an out-of-order payload may wait for the ones before it.
+     *
+     * @return the reorder budget in milliseconds; {@code 0} shows payloads as they arrive
+     */
+    public long getReorderBudgetMillis() { return reorderBudgetMillis; }
+
+    /**
+     * Sets how long an out-of-order payload may wait for the ones before it.
+     *
+     * @param reorderBudgetMillis the reorder budget in milliseconds; {@code 0} to turn reordering off
+     */
+    public void setReorderBudgetMillis(long reorderBudgetMillis) { this.reorderBudgetMillis = reorderBudgetMillis; }
+
+    /**
+     * Returns how long the link may stay quiet before a keep-alive is sent.
+     *
+     * @return the keep-alive interval in milliseconds, as probed so far
+     */
+    public long getKeepAliveIntervalMillis() { return keepAliveIntervalMillis; }
+
+    /**
+     * Sets how long the link may stay quiet before a keep-alive is sent.
+     *
+     * @param keepAliveIntervalMillis the keep-alive interval in milliseconds
+     */
+    public void setKeepAliveIntervalMillis(long keepAliveIntervalMillis) { this.keepAliveIntervalMillis = keepAliveIntervalMillis; }
+
     /**
      * Returns a human-readable summary of the current program state,
      * including socket information, peer details, and session metadata.
@@ -163,8 +407,19 @@ public class ProgramState {
         sb.append("  theirAddress: ").append(theirAddress != null ? theirAddress.getHostAddress() : "null").append("\n");
         sb.append("  theirPort: ").append(theirPort).append("\n");
         sb.append("  bufferSize: ").append(bufferSize).append("\n");
+        sb.append("  peerBufferSize: ").append(peerBufferSize).append("\n");
+        sb.append("  probedBufferSize: ").append(probedBufferSize).append("\n");
+        sb.append("  sendLimit: ").append(getSendLimit()).append("\n");
         sb.append("  sessionDiscriminator: ").append(sessionDiscriminator).append("\n");
         sb.append("  ourIdentityToken: ").append(ourIdentityToken).append("\n");
+        sb.append("  hub: ").append(hubAddress != null ? hubAddress.getHostAddress() + ":" + hubPort : "null").append("\n");
+        sb.append("  sharedMemory: ").append(sharedMemoryLink != null
+                ? sharedMemoryLink.getPath() + (sharedMemoryLink.isAttached() ? " (attached)" : " (offered)") : "null").append("\n");
+        sb.append("  fec: ").append(fecDataFrames > 0 ? fecDataFrames + "," + fecParityFrames : "off").append("\n");
+        sb.append("  reliable: ").append(reliableEnabled).append("\n");
+        sb.append("  reorderBudgetMillis: ").append(reorderBudgetMillis).append("\n");
+        sb.append("  keepAliveIntervalMillis: ").append(keepAliveIntervalMillis).append("\n");
+        sb.append("  multicastGroup: ").append(multicastGroup != null ? multicastGroup.getHostAddress() : "null").append("\n");
         sb.append("  lastReceivedTransmissionTime: ").append(this.lastReceivedTransmissionTime).append("\n");
         sb.append("  lastReceivedTransmissionTime (formatted): ");
         if (this.lastReceivedTransmissionTime == 0) {
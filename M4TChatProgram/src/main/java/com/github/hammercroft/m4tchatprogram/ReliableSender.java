@@ -0,0 +1,179 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmits chat messages until they are acknowledged, in reliable mode.
+ * <p>
+ * Every chat message (and every fragment of one) sent to the current target
+ * is kept in a table keyed by its message ID until the matching
+ * {@code |^~ACK} arrives. If it does not arrive within the retransmission
+ * timeout, the identical frame is sent again, with the same message ID so that
+ * the receiver can tell it is a repeat, and the timeout doubles. After
+ * {@link #MAX_RETRANSMITS} unanswered repeats the message is given up and the
+ * user interface is told with a {@code DELIVERY_FAILED} notification.
+ * </p>
+ * <p>
+ * The timeout adapts to the path as in RFC 6298: a smoothed round-trip time
+ * and its variance are updated from each ACK, and the timeout is the smoothed
+ * time plus four variances. ACKs of retransmitted messages are not measured,
+ * since they cannot tell which copy they answer (Karn's algorithm).
+ * </p>
+ */
+public class ReliableSender {
+
+    /** Timeout used until the first round trip was measured. */
+    public static final long INITIAL_RTO_MS = 1_000;
+
+    /** Lower bound of the timeout. */
+    public static final long MIN_RTO_MS = 200;
+
+    /** Upper bound of the timeout, backoff included. */
+    public static final long MAX_RTO_MS = 10_000;
+
+    /** Repeats of one message before it is reported as failed. */
+    public static final int MAX_RETRANSMITS = 5;
+
+    /** Messages awaiting an ACK at the same time; more are sent untracked. */
+    public static final int MAX_OUTSTANDING = 256;
+
+    private static final long CLOCK_GRANULARITY_MS = 10;
+
+    private final M4TChatProgram chatProgram;
+    private final Map<Short, Outstanding> outstanding = new ConcurrentHashMap<>();
+
+    // the round-trip estimator; guarded by this
+    private double smoothedRtt = -1;
+    private double rttVariance = 0;
+    private long rto = INITIAL_RTO_MS;
+
+    private static final class Outstanding {
+        final short messageId;
+        final byte[] frame;
+        final InetAddress address;
+        final int port;
+        final String message;
+        final long sentNanos = System.nanoTime();
+        int retransmits = 0; // guarded by this entry
+        ScheduledFuture<?> timer; // guarded by this entry
+
+        Outstanding(short messageId, byte[] frame, InetAddress address, int port, String message) {
+            this.messageId = messageId;
+            this.frame = frame;
+            this.address = address;
+            this.port = port;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Creates a reliable sender for the given chat program.
+     *
+     * @param chatProgram the chat program whose messages are retransmitted
+     */
+    public ReliableSender(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Starts waiting for the ACK of a message about to be sent.
+     *
+     * @param messageId the message ID of the frame
+     * @param frame the complete frame, header included, as it will be sent
+     * @param address the destination address
+     * @param port the destination port
+     * @param message the message text, for the failure report
+     */
+    public void track(short messageId, byte[] frame, InetAddress address, int port, String message) {
+        if (outstanding.size() >= MAX_OUTSTANDING) {
+            return;
+        }
+        Outstanding entry = new Outstanding(messageId, frame, address, port, message);
+        synchronized (entry) {
+            if (outstanding.putIfAbsent(messageId, entry) != null) {
+                return; // an ID still in flight; the older message keeps the slot
+            }
+            entry.timer = chatProgram.scheduler.schedule(() -> expire(entry), currentRto(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records an ACK. ACKs of messages that are not outstanding are ignored.
+     *
+     * @param messageId the acknowledged message ID
+     */
+    public void acknowledge(short messageId) {
+        Outstanding entry = outstanding.remove(messageId);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            entry.timer.cancel(false);
+            if (entry.retransmits == 0) {
+                sample((System.nanoTime() - entry.sentNanos) / 1_000_000.0);
+            }
+        }
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return the timeout in milliseconds
+     */
+    public synchronized long currentRto() {
+        return rto;
+    }
+
+    /**
+     * Returns how many messages await an ACK.
+     *
+     * @return the number of outstanding messages
+     */
+    public int outstandingCount() {
+        return outstanding.size();
+    }
+
+    private synchronized void sample(double rttMillis) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = rttMillis;
+            rttVariance = rttMillis / 2;
+        } else {
+            rttVariance = 0.75 * rttVariance + 0.25 * Math.abs(smoothedRtt - rttMillis);
+            smoothedRtt = 0.875 * smoothedRtt + 0.125 * rttMillis;
+        }
+        long computed = (long) Math.ceil(smoothedRtt + Math.max(CLOCK_GRANULARITY_MS, 4 * rttVariance));
+        rto = Math.max(MIN_RTO_MS, Math.min(computed, MAX_RTO_MS));
+    }
+
+    private void expire(Outstanding entry) {
+        synchronized (entry) {
+            if (outstanding.get(entry.messageId) != entry) {
+                return; // acknowledged meanwhile
+            }
+            if (entry.retransmits == MAX_RETRANSMITS) {
+                outstanding.remove(entry.messageId, entry);
+                String text = entry.message.length() > 60 ? entry.message.substring(0, 60) + "..." : entry.message;
+                chatProgram.userInterface.handleProgramNotification(Map.of(
+                        "Topic", "DELIVERY_FAILED",
+                        "Message", text,
+                        "Attempts", MAX_RETRANSMITS + 1
+                ));
+                return;
+            }
+            entry.retransmits++;
+            chatProgram.linkMonitor.retransmitted(entry.messageId);
+            try {
+                chatProgram.transmit(entry.frame, entry.address, entry.port, true);
+            } catch (IOException ex) {
+                System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+            long backedOff = Math.min(currentRto() << entry.retransmits, MAX_RTO_MS);
+            entry.timer = chatProgram.scheduler.schedule(() -> expire(entry), backedOff, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Releases sequenced payloads in sequence order, holding early arrivals for a
+ * bounded time.
+ * <p>
+ * A payload whose sequence number is the next one expected is released at
+ * once, together with any held payloads that follow it without a gap. One that
+ * arrives early is held until the gap before it fills (for example, through a
+ * NACK repair) or until it has waited the configured budget; then the gap is
+ * skipped and everything held up to it is released in order. Payloads arriving
+ * after their gap was skipped are released immediately rather than dropped,
+ * so ordering never costs a message, and never more than the budget in delay.
+ * </p>
+ */
+public class ReorderBuffer {
+
+    /** Most payloads held at once; beyond this, the oldest gap is skipped. */
+    public static final int CAPACITY = SequenceTracker.WINDOW;
+
+    private final long budgetNanos;
+
+    // guarded by this
+    private long nextExpected = -1;
+    private final TreeMap<Long, Held> held = new TreeMap<>();
+
+    private static final class Held {
+        final Payload payload;
+        final long arrivalNanos = System.nanoTime();
+
+        Held(Payload payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Creates a reorder buffer.
+     *
+     * @param budgetMillis how long an early payload may be held; {@code 0}
+     *        releases everything as it arrives
+     */
+    public ReorderBuffer(long budgetMillis) {
+        this.budgetNanos = budgetMillis * 1_000_000;
+    }
+
+    /**
+     * Accepts a sequenced payload.
+     *
+     * @param payload a payload carrying its sequence number
+     * @return the payloads now ready, in order; possibly empty
+     */
+    public synchronized List<Payload> offer(Payload payload) {
+        long seq = payload.getSequence();
+        if (budgetNanos == 0 || seq < 0) {
+            return List.of(payload);
+        }
+        if (nextExpected < 0 || Math.abs(seq - nextExpected) > SequenceTracker.WINDOW) {
+            List<Payload> ready = drain(); // first payload, or a resynchronisation
+            ready.add(payload);
+            nextExpected = seq + 1;
+            return ready;
+        }
+        if (seq < nextExpected) {
+            return List.of(payload); // its gap was already skipped; late beats lost
+        }
+        held.put(seq, new Held(payload));
+        if (held.size() > CAPACITY) {
+            nextExpected = held.firstKey(); // skip the oldest gap early
+        }
+        List<Payload> ready = new ArrayList<>();
+        releaseRun(ready);
+        return ready;
+    }
+
+    /**
+     * Skips the gaps in front of payloads that have waited out the budget.
+     *
+     * @return the payloads now ready, in order; possibly empty
+     */
+    public synchronized List<Payload> releaseExpired() {
+        if (held.isEmpty()) {
+            return Collections.emptyList();
+        }
+        long now = System.nanoTime();
+        long lastExpired = -1;
+        for (Map.Entry<Long, Held> entry : held.entrySet()) {
+            if (now - entry.getValue().arrivalNanos >= budgetNanos) {
+                lastExpired = entry.getKey();
+            }
+        }
+        List<Payload> ready = new ArrayList<>();
+        if (lastExpired >= 0) {
+            while (!held.isEmpty() && held.firstKey() <= lastExpired) {
+                nextExpected = held.firstKey();
+                releaseRun(ready);
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Returns how long until the earliest held payload waits out the budget.
+     *
+     * @return the delay in nanoseconds, or {@code -1} if nothing is held
+     */
+    public synchronized long nanosUntilNextExpiry() {
+        long earliest = Long.MAX_VALUE;
+        for (Held h : held.values()) {
+            earliest = Math.min(earliest, h.arrivalNanos);
+        }
+        return held.isEmpty() ? -1 : Math.max(0, earliest + budgetNanos - System.nanoTime());
+    }
+
+    /**
+     * Releases everything held, in order, and forgets the sequence, e.g.
+     * before switching to another hub or peer.
+     *
+     * @return the payloads that were held, in order
+     */
+    public synchronized List<Payload> reset() {
+        List<Payload> ready = drain();
+        nextExpected = -1;
+        return ready;
+    }
+
+    private List<Payload> drain() {
+        List<Payload> ready = new ArrayList<>(held.size() + 1);
+        for (Held h : held.values()) {
+            ready.add(h.payload);
+        }
+        held.clear();
+        return ready;
+    }
+
+    private void releaseRun(List<Payload> ready) {
+        Held next;
+        while ((next = held.remove(nextExpected)) != null) {
+            ready.add(next.payload);
+            nextExpected++;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.github.hammercroft.m4tchatprogram;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Defines network-level control messages used by M4T.
  * <p>
@@ -33,14 +35,262 @@ public enum Semaphore {
     
     /**
      * Keep-Alive semaphore.
-     * Signals connectivity, sent periodically (ideally every 3 seconds).
+     * Signals connectivity, sent when the link was otherwise quiet for the
+     * keep-alive interval (3 seconds, or longer once probed).
+     */
+    S_KA("|^~KA"),
+
+    /**
+     * Timestamped keep-alive semaphore.
+     * Sent in place of a keep-alive now and then; the other side returns the
+     * timestamp at once with {@code |^~KAECHOOK}. Format:
+     * {@code |^~KAECHO <timestamp>}; see {@link LinkMonitor}.
+     */
+    S_KAECHO("|^~KAECHO"),
+
+    /**
+     * Timestamped keep-alive answer semaphore.
+     * Format: {@code |^~KAECHOOK <timestamp>}, echoing the keep-alive.
+     */
+    S_KAECHOOK("|^~KAECHOOK"),
+
+    /**
+     * Keep-alive probe semaphore.
+     * Asks the other side to answer with {@code |^~KAPROBEOK} after the given
+     * silence, to learn how long the path stays open without keep-alives.
+     * Format: {@code |^~KAPROBE <milliseconds>}; see {@link KeepAliveTransmitter}.
+     */
+    S_KAPROBE("|^~KAPROBE"),
+
+    /**
+     * Keep-alive probe answer semaphore.
+     * Format: {@code |^~KAPROBEOK <milliseconds>}, echoing the probe.
+     */
+    S_KAPROBEOK("|^~KAPROBEOK"),
+
+    /**
+     * Multicast announcement semaphore.
+     * Sent by a hub to advertise the group address and port that room traffic is
+     * published to. Format: {@code |^~MCAST <group> <port>}.
+     */
+    S_MCAST("|^~MCAST"),
+
+    /**
+     * Multicast join semaphore.
+     * Tells the hub that the sender has joined the announced group.
+     */
+    S_MCJOIN("|^~MCJOIN"),
+
+    /**
+     * Multicast probe semaphore.
+     * Sent by a hub to the group. Format: {@code |^~MCPROBE <session> <nonce>}.
+     * Only the holder of the probed session discriminator answers.
+     */
+    S_MCPROBE("|^~MCPROBE"),
+
+    /**
+     * Multicast confirmation semaphore.
+     * Answers a probe over unicast, proving that group traffic reaches the sender.
+     * Format: {@code |^~MCOK <nonce>}.
+     */
+    S_MCOK("|^~MCOK"),
+
+    /**
+     * Payload size announcement semaphore.
+     * Tells the peer the largest payload, in bytes, that it may send to us.
+     * Format: {@code |^~MTU <bytes>}. The same limit may be advertised up front as
+     * a {@code mtu=<bytes>} field in SALVE and E2SALVE.
+     */
+    S_MTU("|^~MTU"),
+
+    /**
+     * Path-MTU probe reply semaphore.
+     * Padded to the probed size so that it proves the return path as well.
+     * Format: {@code |^~PMTUOK <bytes> <padding>}.
+     */
+    S_PMTUOK("|^~PMTUOK"),
+
+    /**
+     * Path-MTU probe semaphore.
+     * Padded so that the whole datagram payload is exactly the probed size.
+     * Format: {@code |^~PMTU <bytes> <padding>}.
+     */
+    S_PMTU("|^~PMTU"),
+
+    /**
+     * Introduction request semaphore.
+     * Asks a hub to introduce the sender to another chatter so that both can
+     * connect directly. Format: {@code |^~INTRO <username>}.
+     */
+    S_INTRO("|^~INTRO"),
+
+    /**
+     * Peer introduction semaphore.
+     * Sent by a hub with the other chatter's endpoint as the hub observes it.
+     * Format: {@code |^~PEER <nonce> <address> <port> <username>}.
+     */
+    S_PEER("|^~PEER"),
+
+    /**
+     * Hole punching success semaphore.
+     * Tells the hub that an introduced pair now talks directly. Format: {@code |^~PUNCHOK <nonce>}.
+     */
+    S_PUNCHOK("|^~PUNCHOK"),
+
+    /**
+     * Hole punching failure semaphore.
+     * Tells the hub to relay for an introduced pair. Format: {@code |^~PUNCHFAIL <nonce>}.
+     */
+    S_PUNCHFAIL("|^~PUNCHFAIL"),
+
+    /**
+     * Hole punching semaphore.
+     * Sent directly between introduced peers to open their NAT mappings.
+     * Format: {@code |^~PUNCH <nonce>}.
+     */
+    S_PUNCH("|^~PUNCH"),
+
+    /**
+     * Sequenced broadcast semaphore.
+     * Wraps a hub's room broadcast with its room sequence number.
+     * Format: {@code |^~SEQ <seq> <message>}; without a message it only fills a gap.
+     */
+    S_SEQ("|^~SEQ"),
+
+    /**
+     * Sequence reset semaphore.
+     * Sent by a hub before it delivers messages held while we were unreachable;
+     * the next sequenced broadcast starts a fresh window instead of being NACKed.
      */
-    S_KA("|^~KA");
+    S_SEQRESET("|^~SEQRESET"),
+
+    /**
+     * Negative acknowledgement semaphore.
+     * Asks a hub to resend the room broadcasts in an inclusive range.
+     * Format: {@code |^~NACK <from> <to>}.
+     */
+    S_NACK("|^~NACK"),
+
+    /**
+     * Redirect semaphore.
+     * Sent by a front-door hub to move us onto the hub process that owns our session.
+     * Format: {@code |^~REDIRECT <address> <port>}.
+     */
+    S_REDIRECT("|^~REDIRECT"),
+
+    /**
+     * Shared-memory acceptance semaphore.
+     * Sent by a hub on the same machine once it has mapped our ring file.
+     */
+    S_SHMOK("|^~SHMOK"),
+
+    /**
+     * Shared-memory refusal semaphore.
+     * Sent by a hub that cannot or will not map our ring file; we stay on UDP.
+     */
+    S_SHMFAIL("|^~SHMFAIL"),
+
+    /**
+     * Shared-memory departure semaphore.
+     * Tells a hub to stop using our ring file, e.g. before leaving for a direct peer.
+     */
+    S_SHMBYE("|^~SHMBYE"),
+
+    /**
+     * Shared-memory offer semaphore.
+     * Offers a hub on the same machine our ring file. Format: {@code |^~SHM <path>}.
+     */
+    S_SHM("|^~SHM"),
+
+    /**
+     * Forward error correction parity semaphore.
+     * Format: {@code |^~FEC <id>,<id>,... } followed by binary parity over the
+     * listed frames; see {@link ForwardErrorCorrector}. Never chat content.
+     */
+    S_FEC("|^~FEC"),
+
+    /**
+     * Fragment semaphore.
+     * Carries one piece of a message too large for a datagram.
+     * Format: {@code |^~FRAG <key> <index> <count> <text>}; see {@link FragmentAssembler}.
+     */
+    S_FRAG("|^~FRAG");
 
     private final String token;
+    private final byte[] bytes;
+
+    // candidates by the letter after "|^~"; a token is listed before any token that is its prefix
+    private static final Semaphore[] A = {S_ACK};
+    private static final Semaphore[] E = {S_E2SALVE};
+    private static final Semaphore[] F = {S_FRAG, S_FEC};
+    private static final Semaphore[] I = {S_INTRO};
+    private static final Semaphore[] K = {S_KAPROBEOK, S_KAECHOOK, S_KAPROBE, S_KAECHO, S_KA};
+    private static final Semaphore[] M = {S_MCPROBE, S_MCJOIN, S_MCAST, S_MCOK, S_MTU};
+    private static final Semaphore[] N = {S_NACK};
+    private static final Semaphore[] P = {S_PUNCHFAIL, S_PUNCHOK, S_PMTUOK, S_PUNCH, S_PMTU, S_PEER};
+    private static final Semaphore[] R = {S_REDIRECT};
+    private static final Semaphore[] S = {S_SEQRESET, S_SHMFAIL, S_SHMBYE, S_SHMOK, S_SALVE, S_SEQ, S_SHM};
 
     Semaphore(String token) {
         this.token = token;
+        this.bytes = token.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns the length of the token in bytes.
+     *
+     * @return the token length
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Tells which semaphore a message starts with, reading the raw UTF-8
+     * content so that control traffic is never decoded into a string. As with
+     * {@link String#startsWith(String)}, the longest matching token wins.
+     *
+     * @param data the array holding the content
+     * @param offset where the content starts
+     * @param length the content length in bytes
+     * @return the semaphore, or {@code null} for chat
+     */
+    public static Semaphore classify(byte[] data, int offset, int length) {
+        if (length < 4 || data[offset] != '|' || data[offset + 1] != '^' || data[offset + 2] != '~') {
+            return null;
+        }
+        Semaphore[] candidates;
+        switch (data[offset + 3]) {
+            case 'A': candidates = A; break;
+            case 'E': candidates = E; break;
+            case 'F': candidates = F; break;
+            case 'I': candidates = I; break;
+            case 'K': candidates = K; break;
+            case 'M': candidates = M; break;
+            case 'N': candidates = N; break;
+            case 'P': candidates = P; break;
+            case 'R': candidates = R; break;
+            case 'S': candidates = S; break;
+            default: return null;
+        }
+        for (Semaphore candidate : candidates) {
+            if (candidate.prefixes(data, offset, length)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private boolean prefixes(byte[] data, int offset, int length) {
+        if (length < bytes.length) {
+            return false;
+        }
+        for (int i = 4; i < bytes.length; i++) { // "|^~" and the letter were matched already
+            if (data[offset + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
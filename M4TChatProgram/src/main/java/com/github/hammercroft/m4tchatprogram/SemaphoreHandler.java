@@ -3,7 +3,10 @@ package com.github.hammercroft.m4tchatprogram;
 import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
 
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles network-level semaphore and control messages for the M4TChatProgram.
@@ -33,7 +36,10 @@ public class SemaphoreHandler {
      *
      * <p>This method parses known prefixes, validates message content, updates
      * session state, notifies the user interface of malformed messages, and
-     * sends any required responses.
+     * sends any required responses. The semaphore is told from the raw content
+     * bytes and its fields are parsed in place, so control traffic is never
+     * decoded into a string; only fields that are used as strings, such as
+     * identity tokens and host names, are.
      *
      * @param received the payload received from a peer
      * @return {@code true} if the message should be processed as a normal chat message,
@@ -41,104 +47,341 @@ public class SemaphoreHandler {
      * @throws IOException if sending a response message fails
      */
     public boolean handle(Payload received) throws IOException {
-        String content = received.getContent();
+        Semaphore semaphore = received.getSemaphore();
+        if (semaphore == null) {
+            return true; // normal message
+        }
+        int from = received.fieldStart(semaphore.length()); // the first field
+        int to = received.fieldEnd(from);
 
-        // S_ACK handling
-        if (content.startsWith(S_ACK.token())) {
-            String ackData = content.substring(S_ACK.token().length()).trim();
+        switch (semaphore) {
+            case S_ACK: {
+                // |^~ACK <id> <session> <message>
+                if (to >= received.contentLength()) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_ACK_MISSING_SPACE_SEPARATOR"
+                    ));
+                    return false;
+                }
+                int sessionFrom = received.fieldStart(to);
+                int sessionTo = received.fieldEnd(sessionFrom);
+                if (sessionFrom == sessionTo) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_ACK_MISSING_SESSION_OR_MESSAGE",
+                            "MessageId", received.text(from, to)
+                    ));
+                    return false;
+                }
+                long msgId = received.parseNumber(from, to);
+                long session = received.parseNumber(sessionFrom, sessionTo);
+                if (!isShort(msgId) || !isShort(session)) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_ACK_INVALID_ID_OR_SESSION",
+                            "MessageId", received.text(from, to),
+                            "Session", received.text(sessionFrom, sessionTo)
+                    ));
+                    return false;
+                }
+                chatProgram.reliableSender.acknowledge((short) msgId);
+                chatProgram.linkMonitor.acknowledged((short) msgId);
+                return false;
+            }
 
-            int firstSpace = ackData.indexOf(' ');
-            if (firstSpace == -1) {
-                chatProgram.userInterface.handleProgramNotification(Map.of(
-                        "Topic", "MALFORMED_ACK_MISSING_SPACE_SEPARATOR"
-                ));
+            case S_SALVE: {
+                // |^~SALVE <identity> [mtu=<bytes>] [fec=<k>,<m>]
+                chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "TARGET_PEER_ONLINE"));
+                applyPeerBufferSize(parseMtuField(received, to));
+                chatProgram.errorCorrector.peerAdvertised(hasFecField(received, to));
+                chatProgram.sendMessage(S_E2SALVE.token() + " " + received.text(from, to)
+                        + " " + chatProgram.state.getOurIdentityToken()
+                        + " mtu=" + chatProgram.state.getBufferSize()
+                        + chatProgram.errorCorrector.advertisement());
                 return false;
             }
 
-            String idPart = ackData.substring(0, firstSpace);
+            case S_E2SALVE: {
+                // |^~E2SALVE <their token> <our token> [<session>] [mtu=<bytes>] [fec=<k>,<m>]
+                int selfFrom = received.fieldStart(to);
+                int selfTo = received.fieldEnd(selfFrom);
+                if (from == to || selfFrom == selfTo) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_ETTUSALVE",
+                            "Content", received.text(from, received.trimmedEnd(from))
+                    ));
+                    return false;
+                }
+
+                int sessionFrom = received.fieldStart(selfTo);
+                int sessionTo = received.fieldEnd(sessionFrom);
+                boolean assigned = sessionFrom < sessionTo && received.indexOf('=', sessionFrom, sessionTo) == -1;
+                if (assigned) {
+                    long session = received.parseNumber(sessionFrom, sessionTo);
+                    if (!isShort(session)) {
+                        chatProgram.userInterface.handleProgramNotification(Map.of(
+                                "Topic", "MALFORMED_ETTUSALVE_INVALID_SESSION",
+                                "SessionPart", received.text(sessionFrom, sessionTo)
+                        ));
+                        return false;
+                    }
+                    chatProgram.state.setSessionDiscriminator((short) session);
+                }
 
-            int secondSpace = ackData.indexOf(' ', firstSpace + 1);
-            if (secondSpace == -1) {
-                chatProgram.userInterface.handleProgramNotification(Map.of(
-                        "Topic", "MALFORMED_ACK_MISSING_SESSION_OR_MESSAGE",
-                        "MessageId", idPart
-                ));
+                applyPeerBufferSize(parseMtuField(received, selfTo));
+                chatProgram.errorCorrector.peerAdvertised(hasFecField(received, selfTo));
+                if (chatProgram.state.isMtuProbingEnabled()) {
+                    chatProgram.mtuProber.start();
+                }
+                if (assigned) {
+                    chatProgram.offerSharedMemory(); // only hubs assign discriminators
+                }
                 return false;
             }
 
-            String sessionPart = ackData.substring(firstSpace + 1, secondSpace);
-            @SuppressWarnings("unused")
-            String acknowledgedMsg = ackData.substring(secondSpace + 1);
-
-            try {
-                @SuppressWarnings("unused")
-                short msgId = Short.parseShort(idPart);
-                @SuppressWarnings("unused")
-                short session = Short.parseShort(sessionPart);
-            } catch (NumberFormatException e) {
-                chatProgram.userInterface.handleProgramNotification(Map.of(
-                        "Topic", "MALFORMED_ACK_INVALID_ID_OR_SESSION",
-                        "MessageId", idPart,
-                        "Session", sessionPart
-                ));
+            case S_MTU: {
+                // the peer settled on the largest payload it accepts
+                long size = received.parseNumber(from, to);
+                if (size == Long.MIN_VALUE || size > Integer.MAX_VALUE) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_MTU",
+                            "Content", received.getContent()
+                    ));
+                } else {
+                    applyPeerBufferSize((int) size);
+                }
                 return false;
             }
 
-            return false;
-        }
+            case S_PMTUOK: {
+                long size = received.parseNumber(from, to);
+                if (size > 0 && size <= Integer.MAX_VALUE) {
+                    chatProgram.mtuProber.acknowledge((int) size);
+                }
+                return false;
+            }
 
-        // SEM_SALVE handling
-        if (content.startsWith(S_SALVE.token())) {
-            chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "TARGET_PEER_ONLINE"));
-            String incomingIdentity = content.substring(S_SALVE.token().length()).trim();
-            String ackMessage = String.format("%s %s %s",
-                    S_E2SALVE.token(),
-                    incomingIdentity,
-                    chatProgram.state.getOurIdentityToken());
-            chatProgram.sendMessage(ackMessage);
-            return false;
-        }
+            case S_PMTU: {
+                // echo probes we could receive, padded to the same size
+                long size = received.parseNumber(from, to);
+                if (size >= M4TChatProgram.MIN_BUFFER_SIZE && size <= chatProgram.state.getBufferSize()) {
+                    chatProgram.sendPadded(S_PMTUOK.token() + " " + size + " ", (int) size);
+                }
+                return false;
+            }
 
-        // SEM_ETTUSALVE handling
-        if (content.startsWith(S_E2SALVE.token())) {
-            String data = content.substring(S_E2SALVE.token().length()).trim();
-            String[] parts = data.split(" ");
+            case S_MCAST: {
+                // a hub offers multicast room traffic: |^~MCAST <group> <port>
+                int portFrom = received.fieldStart(to);
+                int portTo = received.fieldEnd(portFrom);
+                if (!chatProgram.state.isMulticastEnabled() || portFrom == portTo) {
+                    return false;
+                }
+                long port = received.parseNumber(portFrom, portTo);
+                try {
+                    if (port < 0 || port > 65535) {
+                        throw new NumberFormatException();
+                    }
+                    InetAddress group = InetAddress.getByName(received.text(from, to));
+                    if (group.isMulticastAddress() && chatProgram.joinMulticastGroup(group, (int) port)) {
+                        chatProgram.sendMessage(S_MCJOIN.token());
+                    }
+                } catch (UnknownHostException | NumberFormatException e) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_MCAST",
+                            "Content", received.getContent()
+                    ));
+                }
+                return false;
+            }
 
-            if (parts.length < 2) {
-                chatProgram.userInterface.handleProgramNotification(Map.of(
-                        "Topic", "MALFORMED_ETTUSALVE",
-                        "Content", data
-                ));
+            case S_MCPROBE: {
+                // answer only probes addressed to our session: |^~MCPROBE <session> <token>
+                int tokenFrom = received.fieldStart(to);
+                int tokenTo = received.fieldEnd(tokenFrom);
+                if (tokenFrom < tokenTo && received.parseNumber(from, to) == chatProgram.state.getSessionDiscriminator()) {
+                    chatProgram.sendMessage(S_MCOK.token() + " " + received.text(tokenFrom, tokenTo));
+                }
                 return false;
             }
 
-            @SuppressWarnings("unused")
-            String acknowledgedToken = parts[0];
-            @SuppressWarnings("unused")
-            String selfToken = parts[1];
+            case S_PEER: {
+                // a hub introduced us to another chatter: |^~PEER <token> <address> <port> [<name>]
+                int addressFrom = received.fieldStart(to);
+                int addressTo = received.fieldEnd(addressFrom);
+                int portFrom = received.fieldStart(addressTo);
+                int portTo = received.fieldEnd(portFrom);
+                long port = received.parseNumber(portFrom, portTo);
+                try {
+                    if (portFrom == portTo || port < 0 || port > 65535) {
+                        throw new NumberFormatException();
+                    }
+                    InetAddress address = InetAddress.getByName(received.text(addressFrom, addressTo));
+                    int nameFrom = received.fieldStart(portTo);
+                    String name = nameFrom < received.contentLength()
+                            ? received.text(nameFrom, received.trimmedEnd(nameFrom))
+                            : address.getHostAddress();
+                    chatProgram.holePuncher.start(received.text(from, to), address, (int) port, name);
+                } catch (UnknownHostException | NumberFormatException e) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_PEER",
+                            "Content", received.getContent()
+                    ));
+                }
+                return false;
+            }
 
-            if (parts.length >= 3) {
+            case S_REDIRECT: {
+                // a front door hands us to our assigned hub: |^~REDIRECT <address> <port>
+                int portFrom = received.fieldStart(to);
+                int portTo = received.fieldEnd(portFrom);
+                if (portFrom == portTo || chatProgram.state.getHubAddress() != null) {
+                    return false; // malformed, or relayed to us over a direct peer link
+                }
+                long port = received.parseNumber(portFrom, portTo);
                 try {
-                    short session = Short.parseShort(parts[2]);
-                    chatProgram.state.setSessionDiscriminator(session);
-                } catch (NumberFormatException e) {
+                    if (port < 0 || port > 65535) {
+                        throw new NumberFormatException();
+                    }
+                    InetAddress address = InetAddress.getByName(received.text(from, to));
+                    chatProgram.redirectTo(address, (int) port);
                     chatProgram.userInterface.handleProgramNotification(Map.of(
-                            "Topic", "MALFORMED_ETTUSALVE_INVALID_SESSION",
-                            "SessionPart", parts[2]
+                            "Topic", "REDIRECTED",
+                            "Address", address.getHostAddress() + ":" + port
                     ));
-                    return false;
+                } catch (UnknownHostException | NumberFormatException e) {
+                    chatProgram.userInterface.handleProgramNotification(Map.of(
+                            "Topic", "MALFORMED_REDIRECT",
+                            "Content", received.getContent()
+                    ));
+                }
+                return false;
+            }
+
+            case S_SHMOK: {
+                SharedMemoryLink link = chatProgram.state.getSharedMemoryLink();
+                if (link != null && !link.isAttached()) {
+                    link.setAttached(true);
+                    chatProgram.userInterface.handleProgramNotification(Map.of("Topic", "SHARED_MEMORY_ATTACHED"));
                 }
+                return false;
+            }
+
+            case S_SHMFAIL:
+                // the hub would not map our ring file
+                chatProgram.detachSharedMemory();
+                return false;
+
+            case S_SEQRESET:
+                // the hub is about to replay held messages
+                chatProgram.resetOrdering();
+                return false;
+
+            case S_PUNCH:
+                // an introduced peer got through to us
+                chatProgram.holePuncher.punchReceived(received.text(from, received.trimmedEnd(from)));
+                return false;
+
+            case S_KAECHOOK: {
+                long timestamp = received.parseNumber(from, to);
+                if (timestamp != Long.MIN_VALUE) {
+                    chatProgram.linkMonitor.echoed(timestamp);
+                }
+                return false;
+            }
+
+            case S_KAECHO:
+                // return the timestamp at once, as hubs do
+                if (from < to && to - from <= 20) {
+                    chatProgram.sendMessage(S_KAECHOOK.token() + " " + received.text(from, to));
+                }
+                return false;
+
+            case S_KAPROBEOK: {
+                long silence = received.parseNumber(from, to);
+                if (silence != Long.MIN_VALUE) {
+                    chatProgram.keepAlive.probeAnswered(silence);
+                }
+                return false;
             }
 
-            return false;
+            case S_KAPROBE: {
+                // answer after the requested silence, as hubs do
+                long silence = received.parseNumber(from, to);
+                if (silence > 0 && silence <= KeepAliveTransmitter.MAX_INTERVAL_MS) {
+                    chatProgram.scheduler.schedule(() -> {
+                        try {
+                            chatProgram.sendMessage(S_KAPROBEOK.token() + " " + silence);
+                        } catch (IOException ex) {
+                            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                        }
+                    }, silence, TimeUnit.MILLISECONDS);
+                }
+                return false;
+            }
+
+            case S_KA:            // keep-alive
+            case S_MCJOIN:        // multicast bookkeeping addressed to hubs
+            case S_MCOK:
+            case S_SHMBYE:        // hub-bound shared-memory bookkeeping
+            case S_SHM:
+            case S_FEC:           // parity that reached us without FEC enabled
+            case S_NACK:          // hub-bound repair request
+            case S_PUNCHOK:       // hub-bound introduction bookkeeping
+            case S_PUNCHFAIL:
+            case S_INTRO:
+                return false;     // never chat content
+
+            default:
+                return true;      // an envelope left over after unwrapping; shown as it is
+        }
+    }
+
+    /**
+     * Reads the optional {@code mtu=<bytes>} field of SALVE and E2SALVE.
+     *
+     * @param received the SALVE or E2SALVE
+     * @param from the position to look from
+     * @return the advertised size, or {@code 0} if absent or malformed
+     */
+    private static int parseMtuField(Payload received, int from) {
+        int at = findField(received, "mtu=", from);
+        if (at == -1) {
+            return 0;
         }
+        long size = received.parseNumber(at + 4, received.fieldEnd(at));
+        return size > 0 && size <= Integer.MAX_VALUE ? (int) size : 0;
+    }
 
-        // SEM_KA (keep-alive)
-        if (content.startsWith(S_KA.token())) {
-            return false;
+    /**
+     * Tells whether SALVE or E2SALVE carries the {@code fec=K,M} field, i.e.
+     * whether the peer understands parity frames.
+     */
+    private static boolean hasFecField(Payload received, int from) {
+        return findField(received, "fec=", from) != -1;
+    }
+
+    /**
+     * Finds the first field at or after a position that starts with the given text.
+     *
+     * @return the field's position, or {@code -1}
+     */
+    private static int findField(Payload received, String prefix, int from) {
+        for (int at = received.fieldStart(from); at < received.contentLength();
+                at = received.fieldStart(received.fieldEnd(at))) {
+            if (received.regionMatches(at, prefix)) {
+                return at;
+            }
         }
+        return -1;
+    }
 
-        // Default: normal message
-        return true;
+    private static boolean isShort(long value) {
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+    }
+
+    private void applyPeerBufferSize(int advertised) {
+        if (advertised > 0) {
+            chatProgram.state.setPeerBufferSize(Math.max(M4TChatProgram.MIN_BUFFER_SIZE,
+                    Math.min(advertised, M4TChatProgram.MAX_BUFFER_SIZE)));
+        }
     }
 }
\ No newline at end of file
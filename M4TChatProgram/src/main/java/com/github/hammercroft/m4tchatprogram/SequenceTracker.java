@@ -0,0 +1,156 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import static com.github.hammercroft.m4tchatprogram.Semaphore.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects gaps in a hub's sequenced room broadcasts and asks for repairs.
+ * <p>
+ * A hub wraps each room broadcast as {@code |^~SEQ <seq> <message>}. This
+ * tracker remembers the highest sequence number seen and which of the
+ * {@link #WINDOW} numbers below it are still missing. When a broadcast skips
+ * ahead, the skipped range is requested with {@code |^~NACK <from> <to>}, and
+ * requested again once after {@link #RENACK_DELAY_MS} if it is still missing.
+ * Jumps of a whole window or more, in either direction, are treated as a
+ * resynchronisation (for example, a hub restart) and are not NACKed.
+ * </p>
+ */
+public class SequenceTracker {
+
+    /** How many sequence numbers behind the highest one are tracked. */
+    public static final int WINDOW = 64;
+
+    /** Delay before a still-missing range is requested a second time. */
+    public static final long RENACK_DELAY_MS = 250;
+
+    private final M4TChatProgram chatProgram;
+    private final AtomicLong outbound = new AtomicLong();
+
+    // guarded by this
+    private long highest = -1;
+    private long missing = 0; // bit k set: highest - 1 - k has not arrived
+
+    /**
+     * Creates a tracker that sends NACKs through the given chat program.
+     *
+     * @param chatProgram the chat program to send NACKs with
+     */
+    public SequenceTracker(M4TChatProgram chatProgram) {
+        this.chatProgram = chatProgram;
+    }
+
+    /**
+     * Forgets all sequence state, e.g. after switching to another hub or peer.
+     */
+    public synchronized void reset() {
+        highest = -1;
+        missing = 0;
+        outbound.set(0);
+    }
+
+    /**
+     * Wraps a chat message in a {@code |^~SEQ} envelope with our next
+     * sequence number, so that a peer on a direct link can order it.
+     *
+     * @param message the message to wrap
+     * @return the wrapped message
+     */
+    public String wrap(String message) {
+        return S_SEQ.token() + " " + outbound.incrementAndGet() + " " + message;
+    }
+
+    /**
+     * Unwraps a {@code |^~SEQ} payload and records its sequence number.
+     *
+     * @param received a payload whose content starts with {@code |^~SEQ}
+     * @return the inner payload, carrying its sequence number, with empty
+     *         content for a gap filler; or {@code null} if it was a duplicate
+     *         or malformed
+     * @throws IOException if a NACK cannot be sent
+     */
+    public Payload unwrap(Payload received) throws IOException {
+        int from = received.fieldStart(S_SEQ.length());
+        int to = received.fieldEnd(from);
+        long seq = received.parseNumber(from, to);
+        if (seq == Long.MIN_VALUE || !accept(seq)) {
+            return null;
+        }
+        // the inner message shares the envelope's bytes; empty: filler for a broadcast never meant for us
+        return received.tail(Math.min(to + 1, received.contentLength()), seq);
+    }
+
+    /**
+     * Records a sequence number, NACKing any range it skips.
+     *
+     * @param seq the received sequence number
+     * @return {@code false} if this number was already received
+     * @throws IOException if a NACK cannot be sent
+     */
+    public boolean accept(long seq) throws IOException {
+        long nackFrom;
+        synchronized (this) {
+            if (highest < 0 || seq - highest > WINDOW || highest - seq > WINDOW) {
+                highest = seq; // first broadcast, or too far off to repair
+                missing = 0;
+                return true;
+            }
+            if (seq == highest) {
+                return false;
+            }
+            if (seq < highest) {
+                long bit = 1L << (highest - 1 - seq);
+                if ((missing & bit) == 0) {
+                    return false;
+                }
+                missing &= ~bit;
+                return true;
+            }
+            long advance = seq - highest;
+            missing = (advance >= Long.SIZE ? 0 : missing << advance) | lowBits(advance - 1);
+            nackFrom = highest + 1;
+            highest = seq;
+            if (advance == 1) {
+                return true;
+            }
+        }
+        long nackTo = seq - 1;
+        sendNack(nackFrom, nackTo);
+        chatProgram.scheduler.schedule(() -> renackIfStillMissing(nackFrom, nackTo),
+                RENACK_DELAY_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private synchronized boolean isMissing(long seq) {
+        long k = highest - 1 - seq;
+        return k >= 0 && k < WINDOW && (missing & (1L << k)) != 0;
+    }
+
+    private void renackIfStillMissing(long from, long to) {
+        long first = -1;
+        long last = -1;
+        for (long seq = from; seq <= to; seq++) {
+            if (isMissing(seq)) {
+                if (first < 0) first = seq;
+                last = seq;
+            }
+        }
+        if (first >= 0) {
+            try {
+                sendNack(first, last);
+            } catch (IOException ex) {
+                System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+    }
+
+    private void sendNack(long from, long to) throws IOException {
+        chatProgram.sendMessage(S_NACK.token() + " " + from + " " + to);
+    }
+
+    private static long lowBits(long count) {
+        return count >= Long.SIZE ? -1L : (1L << count) - 1;
+    }
+}
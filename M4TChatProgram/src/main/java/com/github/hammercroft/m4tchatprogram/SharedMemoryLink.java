@@ -0,0 +1,202 @@
+package com.github.hammercroft.m4tchatprogram;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A local transport to a hub on the same machine, through a memory-mapped
+ * file in {@code /dev/shm}.
+ * <p>
+ * The file holds two single-producer single-consumer rings: one carrying our
+ * frames to the hub, one carrying the hub's frames to us. Each ring keeps an
+ * ever-growing head counter (advanced by its consumer) and tail counter
+ * (advanced by its producer) on separate cache lines, followed by
+ * {@link #SLOTS} slots of {@link #SLOT_SIZE} bytes. Each side publishes its own
+ * counter with release semantics and reads the other's with acquire semantics,
+ * so neither process ever takes a lock the other can see. The layout matches
+ * the hub's {@code ShmRing} and {@code ShmLink}.
+ * </p>
+ * <p>
+ * We create the file and offer it with {@code |^~SHM <path>}; once the hub
+ * answers {@code |^~SHMOK}, hub-bound frames go through the ring instead of
+ * the UDP socket. Frames that do not fit, or find the ring full, still go
+ * over UDP.
+ * </p>
+ */
+public class SharedMemoryLink {
+
+    /** Number of slots in each ring. */
+    public static final int SLOTS = 256;
+
+    /** Size of each slot; a slot holds a length and one frame. */
+    public static final int SLOT_SIZE = 2048;
+
+    /** Directory ring files are created in. */
+    public static final Path SHM_DIR = Paths.get("/dev/shm");
+
+    /** Empty polls the receiver spins through before it starts parking. */
+    public static final int SPIN_LIMIT = 20_000;
+
+    /**
+     * Whether spinning yields the processor. On a single core, busy-waiting
+     * would only keep the hub from producing.
+     */
+    public static final boolean YIELD_WHILE_SPINNING = Runtime.getRuntime().availableProcessors() == 1;
+
+    /** How long an idle receiver first parks between polls; the park doubles while the ring stays empty. */
+    public static final long PARK_NANOS = 50_000;
+
+    /** The longest an idle receiver parks, which bounds both its wakeup rate and the latency of the first frame. */
+    public static final long MAX_PARK_NANOS = 4_000_000;
+
+    private static final int MAGIC = 0x4D345452; // "M4TR"
+    private static final int VERSION = 1;
+    private static final int PREAMBLE = 64;
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    private static final int RING_HEADER = 128;
+    private static final int RING_SIZE = RING_HEADER + SLOTS * SLOT_SIZE;
+    private static final long FILE_SIZE = PREAMBLE + 2L * RING_SIZE;
+    private static final int TO_HUB = PREAMBLE;
+    private static final int FROM_HUB = PREAMBLE + RING_SIZE;
+    private static final VarHandle COUNTER = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path path;
+    private final MappedByteBuffer map;
+    private final ByteBuffer writeView; // guarded by this; we have several sending threads
+    private final ByteBuffer readView; // used only by the receiving thread
+    private volatile boolean attached = false;
+    private volatile boolean closed = false;
+
+    private SharedMemoryLink(Path path, MappedByteBuffer map) {
+        this.path = path;
+        this.map = map;
+        this.writeView = map.duplicate();
+        this.readView = map.duplicate();
+    }
+
+    /**
+     * Returns whether this machine offers the shared-memory directory.
+     *
+     * @return {@code true} if {@link #SHM_DIR} exists
+     */
+    public static boolean isSupported() {
+        return Files.isDirectory(SHM_DIR);
+    }
+
+    /**
+     * Creates and maps a fresh ring file.
+     *
+     * @return the new link, not yet attached
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static SharedMemoryLink create() throws IOException {
+        String name = String.format("m4t-%016x.ring", ThreadLocalRandom.current().nextLong());
+        Path path = SHM_DIR.resolve(name);
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE); // grows the file
+            map.putInt(4, VERSION);
+            map.putInt(0, MAGIC);
+            return new SharedMemoryLink(path, map);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the ring file's path, as offered to the hub.
+     *
+     * @return the path of the ring file
+     */
+    public Path getPath() { return path; }
+
+    /**
+     * Returns whether the hub accepted this link.
+     *
+     * @return {@code true} once the hub answered {@code |^~SHMOK}
+     */
+    public boolean isAttached() { return attached; }
+
+    /**
+     * Marks whether the hub accepted this link.
+     *
+     * @param attached {@code true} once the hub answered {@code |^~SHMOK}
+     */
+    public void setAttached(boolean attached) { this.attached = attached; }
+
+    /**
+     * Returns whether this link was closed.
+     *
+     * @return {@code true} after {@link #close()}
+     */
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Copies a frame into the next free slot of the hub-bound ring.
+     *
+     * @param frame the complete frame, header included
+     * @return {@code false} if the ring is full or the frame does not fit a slot
+     */
+    public synchronized boolean offer(byte[] frame) {
+        if (frame.length > SLOT_SIZE - 4) {
+            return false;
+        }
+        long tail = (long) COUNTER.getOpaque(map, TO_HUB + TAIL);
+        long head = (long) COUNTER.getAcquire(map, TO_HUB + HEAD);
+        if (tail - head >= SLOTS) {
+            return false;
+        }
+        writeView.clear();
+        writeView.position(TO_HUB + RING_HEADER + (int) (tail % SLOTS) * SLOT_SIZE);
+        writeView.putInt(frame.length).put(frame);
+        COUNTER.setRelease(map, TO_HUB + TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Takes the next frame the hub produced. Only one thread may poll.
+     *
+     * @return the frame, or {@code null} if none is waiting
+     */
+    public byte[] poll() {
+        long head = (long) COUNTER.getOpaque(map, FROM_HUB + HEAD);
+        long tail = (long) COUNTER.getAcquire(map, FROM_HUB + TAIL);
+        if (head == tail) {
+            return null;
+        }
+        int slot = FROM_HUB + RING_HEADER + (int) (head % SLOTS) * SLOT_SIZE;
+        int length = map.getInt(slot);
+        byte[] frame = new byte[length < 0 || length > SLOT_SIZE - 4 ? 0 : length]; // corrupt slots are dropped
+        readView.clear();
+        readView.position(slot + 4);
+        readView.get(frame);
+        COUNTER.setRelease(map, FROM_HUB + HEAD, head + 1);
+        return frame;
+    }
+
+    /**
+     * Detaches and deletes the ring file. The mapping itself is released
+     * once it is no longer referenced.
+     */
+    public void close() {
+        attached = false;
+        closed = true;
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ex) {
+            System.getLogger(M4TChatProgram.class.getName()).log(System.Logger.Level.WARNING, "Could not delete " + path, ex);
+        }
+    }
+}
@@ -4,9 +4,9 @@ package com.github.hammercroft.m4tchatprogram;
  * A fixed-capacity, time-aware storage for transient message IDs with monotonic
  * timestamps.
  * <p>
- * Each entry is a {@link Pair} of a monotonic timestamp (nanoseconds) and a
- * transient message ID (short). The buffer behaves as a circular array with a
- * maximum capacity of 256 entries.
+ * Each push of a transient message ID (short) is numbered and stamped with a
+ * monotonic timestamp (nanoseconds). The buffer behaves as a circular array with
+ * a maximum capacity of 256 entries.
  * </p>
  * <p>
  * Behavior rules:
@@ -18,20 +18,24 @@ package com.github.hammercroft.m4tchatprogram;
  * <li>Supports checking if a transient message ID exists in the current
  * buffer.</li>
  * </ul>
+ * <p>
+ * Both {@link #push(short)} and {@link #contains(short)} run in constant time
+ * and allocate nothing: every message ID remembers the number of its latest
+ * push, and it is in the buffer exactly when that push has not yet left the
+ * front.
+ * </p>
  */
-@SuppressWarnings({ "unchecked", "rawtypes" }) //emitted by TransientMessageStore.buffer declaration
 public class TransientMessageStore {
     /*
-     * This array is used in a performance-critical section and must remain a
-     * plain array for predictable memory layout and low allocation overhead.
-     * 
-     * Do NOT “fix” this by replacing it with a List or similar container.
-     * Type safety is maintained by strict control of what is stored in 'buffer'.
+     * These arrays are used in a performance-critical section and must remain
+     * plain primitive arrays for predictable memory layout and no allocation.
+     *
+     * Do NOT “fix” this by replacing them with a List, a Map or boxed entries.
      */
-    private final Pair<Long, Short>[] buffer = new Pair[256]; // IGNORE UNCHECKED & RAWTYPES WARNING
-    private int head = 0;  // oldest element
-    private int tail = 0;  // next free slot
-    private int size = 0;
+    private final long[] timestamps = new long[256];         // by push number & 0xFF
+    private final long[] latestPush = new long[65536];       // by unsigned message ID; 0 means never pushed
+    private long head = 1; // number of the oldest push still stored
+    private long tail = 1; // number of the next push
 
     private static final int AGE_CHECK_THRESHOLD = 64;
     private static final long AGE_LIMIT_NS = 30_000_000_000L; // 30 seconds in nanoseconds
@@ -48,26 +52,18 @@ public class TransientMessageStore {
      */
     public void push(short messageId) {
         long now = System.nanoTime();
-        Pair<Long, Short> newPair = new Pair<>(now, messageId);
 
-        buffer[tail] = newPair;
-        tail = (tail + 1) & 0xFF; // wrap around 256
-        if (size < 256) {
-            size++;
-        } else {
-            head = tail; // overwrite oldest
+        timestamps[(int) tail & 0xFF] = now;
+        latestPush[messageId & 0xFFFF] = tail;
+        tail++;
+        if (tail - head > 256) {
+            head++; // overwrite oldest
         }
 
-        // Step 1: prune old pairs if size > 64
-        if (size > AGE_CHECK_THRESHOLD) {
-            while (size > 0) {
-                Pair<Long, Short> oldest = buffer[head];
-                if (now - oldest.getFirst() > AGE_LIMIT_NS) {
-                    head = (head + 1) & 0xFF;
-                    size--;
-                } else {
-                    break;
-                }
+        // Step 1: prune old entries if size > 64; each entry is pruned once, so this is O(1) amortised
+        if (size() > AGE_CHECK_THRESHOLD) {
+            while (head < tail && now - timestamps[(int) head & 0xFF] > AGE_LIMIT_NS) {
+                head++;
             }
         }
 
@@ -82,22 +78,22 @@ public class TransientMessageStore {
      * {@code false} otherwise.
      */
     public boolean contains(short messageId) {
-        int idx = head;
-        for (int i = 0; i < size; i++) {
-            if (buffer[idx].getSecond() == messageId) {
-                return true;
-            }
-            idx = (idx + 1) & 0xFF;
-        }
-        return false;
+        return latestPush[messageId & 0xFFFF] >= head;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        head = tail;
     }
 
     /**
      * Returns the current number of entries stored in the buffer.
      *
-     * @return The number of stored pairs.
+     * @return The number of stored entries.
      */
     public int size() {
-        return size;
+        return (int) (tail - head);
     }
 }